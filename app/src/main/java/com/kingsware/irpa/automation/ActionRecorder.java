@@ -0,0 +1,298 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 操作录制
+ * 录制期间把用户的点击、长按、滚动和窗口切换事件转换为脚本步骤，格式同设备端脚本：
+ * 点击记录为带选择条件和 rect 提示的 click，长按记录为按住的 gesture。
+ * 选择条件优先只用资源 id，没有 id 或 id 不唯一时加上文本或描述，节点本身没有文本时取子节点的文本，
+ * 仍不唯一时再加上类名，回放时由 rect 提示在候选中选择。
+ * 噪声合并：同一容器上连续的滚动按滑动次数计数（间隔小于 FLING_GAP 的事件属于同一次滑动），
+ * 之后点击了容器内的节点时合并为一个 scrollTo，否则合并为重复的 swipe；
+ * 连续的窗口切换合并为一个等待最终界面稳定的 wait。
+ * 选择条件的唯一性按事件到达时的界面检查：在主线程用系统的按 id、按文本查找取候选节点，
+ * 不查询节点快照，也不等待快照锁；点击后界面切换不影响结果。生成不了条件时只按 rect 点击。
+ * 事件在主线程处理。
+ */
+public class ActionRecorder {
+    private static final long FLING_GAP = 300;
+    private static final long LONG_CLICK_DURATION = 600;
+    private static final int MAX_TEXT_LENGTH = 40;
+    private static final long WINDOW_QUIET = 500;
+    private static final long WINDOW_TIMEOUT = 10000;
+    private static final long SCROLL_QUIET = 300;
+    private static final long SCROLL_TIMEOUT = 3000;
+    private static final int SWIPE_RIGHT = 1;
+    private static final int SWIPE_LEFT = 2;
+    private static final int SWIPE_UP = 3;
+    private static final int SWIPE_DOWN = 4;
+
+    private final AutoAccessibilityService service;
+    // 自身界面（悬浮提示等）的事件不录制
+    private final String ignoredPackage;
+    private final ArrayList<Map<String, Object>> steps = new ArrayList<>();
+    private final long startTime = SystemClock.uptimeMillis();
+    private int events;
+
+    // 尚未输出的滚动
+    private final Rect scrollBounds = new Rect();
+    private int scrollCount;
+    private int scrollDeltaX;
+    private int scrollDeltaY;
+    private long lastScrollTime;
+    // 最后一步是窗口切换后的等待
+    private Map<String, Object> windowWait;
+
+    ActionRecorder(AutoAccessibilityService service, String ignoredPackage) {
+        this.service = service;
+        this.ignoredPackage = ignoredPackage;
+    }
+
+    synchronized void onEvent(AccessibilityEvent event) {
+        CharSequence pkg = event.getPackageName();
+        if (pkg == null || pkg.toString().equals(ignoredPackage)) return;
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_VIEW_CLICKED:
+            case AccessibilityEvent.TYPE_VIEW_LONG_CLICKED:
+                try (NodeScope scope = NodeScope.open()) {
+                    AccessibilityNodeInfo node = scope.add(event.getSource());
+                    if (node == null) return;
+                    events++;
+                    Rect bounds = new Rect();
+                    node.getBoundsInScreen(bounds);
+                    if (event.getEventType() == AccessibilityEvent.TYPE_VIEW_LONG_CLICKED) {
+                        flushScroll(null, null);
+                        addLongClick(bounds);
+                    } else {
+                        Map<String, Object> selector = selector(node, scope);
+                        if (selector.isEmpty()) selector = null;
+                        flushScroll(selector, bounds);
+                        addClick(selector, bounds);
+                    }
+                }
+                break;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                try (NodeScope scope = NodeScope.open()) {
+                    AccessibilityNodeInfo node = scope.add(event.getSource());
+                    if (node == null) return;
+                    events++;
+                    Rect bounds = new Rect();
+                    node.getBoundsInScreen(bounds);
+                    onScroll(bounds, event.getScrollDeltaX(), event.getScrollDeltaY(), event.getEventTime());
+                }
+                break;
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                events++;
+                flushScroll(null, null);
+                if (windowWait != null) {
+                    windowWait.put("packageName", pkg.toString());
+                } else {
+                    windowWait = new LinkedHashMap<>();
+                    windowWait.put("operation", "wait");
+                    windowWait.put("packageName", pkg.toString());
+                    windowWait.put("quiet", WINDOW_QUIET);
+                    windowWait.put("timeout", WINDOW_TIMEOUT);
+                    steps.add(windowWait);
+                }
+                break;
+        }
+    }
+
+    /**
+     * 结束录制
+     * @return {steps, defaults}，可直接作为脚本上传；附带 events（录制的事件数）和 duration（毫秒）
+     */
+    synchronized HashMap<String, Object> finish() {
+        flushScroll(null, null);
+        HashMap<String, Object> script = new HashMap<>();
+        script.put("steps", new ArrayList<>(steps));
+        script.put("defaults", new HashMap<String, Object>());
+        script.put("events", events);
+        script.put("duration", SystemClock.uptimeMillis() - startTime);
+        return script;
+    }
+
+    private void addClick(Map<String, Object> selector, Rect bounds) {
+        Map<String, Object> step = new LinkedHashMap<>();
+        step.put("operation", "click");
+        // 没有选择条件时回放只按 rect 点击
+        if (selector != null) step.put("selector", selector);
+        step.put("rect", rect(bounds));
+        add(step);
+    }
+
+    private void addLongClick(Rect bounds) {
+        Map<String, Object> stroke = new LinkedHashMap<>();
+        stroke.put("points", Collections.singletonList(Arrays.asList(bounds.centerX(), bounds.centerY())));
+        stroke.put("duration", LONG_CLICK_DURATION);
+        Map<String, Object> step = new LinkedHashMap<>();
+        step.put("operation", "gesture");
+        step.put("strokes", Collections.singletonList(stroke));
+        add(step);
+    }
+
+    private void add(Map<String, Object> step) {
+        steps.add(step);
+        windowWait = null;
+    }
+
+    private void onScroll(Rect bounds, int deltaX, int deltaY, long time) {
+        if (scrollCount > 0 && !bounds.equals(scrollBounds)) {
+            flushScroll(null, null);
+        }
+        if (scrollCount == 0 || time - lastScrollTime > FLING_GAP) {
+            scrollCount++;
+        }
+        scrollBounds.set(bounds);
+        // -1 表示未知
+        if (deltaX != -1) scrollDeltaX += deltaX;
+        if (deltaY != -1) scrollDeltaY += deltaY;
+        lastScrollTime = time;
+    }
+
+    /**
+     * 输出未处理的滚动
+     * @param target 随后点击的节点的选择条件，节点在滚动的容器内时合并为 scrollTo
+     * @param targetBounds 该节点的位置
+     */
+    private void flushScroll(Map<String, Object> target, Rect targetBounds) {
+        if (scrollCount == 0) return;
+        boolean horizontal = Math.abs(scrollDeltaX) > Math.abs(scrollDeltaY);
+        boolean backward = horizontal ? scrollDeltaX < 0 : scrollDeltaY < 0;
+        if (target != null && scrollBounds.contains(targetBounds.centerX(), targetBounds.centerY())) {
+            Map<String, Object> step = new LinkedHashMap<>();
+            step.put("operation", "scrollTo");
+            step.put("selector", target);
+            if (backward) step.put("direction", "backward");
+            // 回放时的滑动距离与录制时不同，留出余量
+            step.put("maxScrolls", Math.max(5, scrollCount * 2));
+            add(step);
+        } else {
+            int type = horizontal ? (backward ? SWIPE_RIGHT : SWIPE_LEFT) : (backward ? SWIPE_DOWN : SWIPE_UP);
+            Map<String, Object> swipe = new LinkedHashMap<>();
+            swipe.put("operation", "swipe");
+            swipe.put("type", type);
+            Map<String, Object> settle = new LinkedHashMap<>();
+            settle.put("operation", "wait");
+            settle.put("quiet", SCROLL_QUIET);
+            settle.put("timeout", SCROLL_TIMEOUT);
+            if (scrollCount == 1) {
+                add(swipe);
+                add(settle);
+            } else {
+                Map<String, Object> loop = new LinkedHashMap<>();
+                loop.put("repeat", scrollCount);
+                loop.put("steps", Arrays.asList(swipe, settle));
+                add(loop);
+            }
+        }
+        scrollCount = 0;
+        scrollDeltaX = 0;
+        scrollDeltaY = 0;
+    }
+
+    /**
+     * 节点的选择条件，优先只用资源 id，不唯一时依次加上文本（或描述、子节点文本）和类名
+     * @return 节点没有可用的属性时为空
+     */
+    private Map<String, Object> selector(AccessibilityNodeInfo node, NodeScope scope) {
+        Map<String, Object> spec = new LinkedHashMap<>();
+        AccessibilityNodeInfo root = scope.root(service);
+        String resId = node.getViewIdResourceName();
+        // 满足已加入条件的候选节点，为 null 表示未知
+        List<AccessibilityNodeInfo> candidates = null;
+        if (resId != null) {
+            spec.put("viewId", resId);
+            if (root != null) {
+                candidates = visible(scope.addAll(root.findAccessibilityNodeInfosByViewId(resId)));
+                if (candidates.size() <= 1) return spec;
+            }
+        }
+        String text = label(node.getText());
+        String desc = label(node.getContentDescription());
+        String childText = text == null && desc == null ? childText(node, scope) : null;
+        String search = text != null ? text : desc != null ? desc : childText;
+        if (search != null) {
+            if (text != null) {
+                spec.put("text", text);
+            } else if (desc != null) {
+                spec.put("desc", desc);
+            } else {
+                spec.put("hasChild", Collections.singletonMap("text", childText));
+            }
+            if (root != null) {
+                if (candidates == null) {
+                    // 按文本查找同时匹配描述，按子节点文本查找时取其父节点
+                    candidates = visible(scope.addAll(root.findAccessibilityNodeInfosByText(search)));
+                    if (childText != null) candidates = parents(candidates, scope);
+                }
+                int count = 0;
+                for (AccessibilityNodeInfo candidate : candidates) {
+                    if (text != null ? text.equals(toStr(candidate.getText()))
+                            : desc != null ? desc.equals(toStr(candidate.getContentDescription()))
+                            : childText.equals(childText(candidate, scope))) {
+                        count++;
+                    }
+                }
+                if (count <= 1) return spec;
+            }
+        }
+        if (node.getClassName() != null) {
+            spec.put("className", node.getClassName().toString());
+        }
+        return spec;
+    }
+
+    private static List<AccessibilityNodeInfo> visible(List<AccessibilityNodeInfo> nodes) {
+        List<AccessibilityNodeInfo> visible = new ArrayList<>(nodes.size());
+        for (AccessibilityNodeInfo node : nodes) {
+            if (node != null && node.isVisibleToUser()) visible.add(node);
+        }
+        return visible;
+    }
+
+    private static List<AccessibilityNodeInfo> parents(List<AccessibilityNodeInfo> nodes, NodeScope scope) {
+        List<AccessibilityNodeInfo> parents = new ArrayList<>(nodes.size());
+        for (AccessibilityNodeInfo node : nodes) {
+            AccessibilityNodeInfo parent = scope.add(node.getParent());
+            if (parent != null && !parents.contains(parent)) parents.add(parent);
+        }
+        return parents;
+    }
+
+    private static String toStr(CharSequence value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static String childText(AccessibilityNodeInfo node, NodeScope scope) {
+        for (int i = 0; i < node.getChildCount(); i++) {
+            AccessibilityNodeInfo child = scope.child(node, i);
+            if (child == null) continue;
+            String text = label(child.getText());
+            if (text != null) return text;
+        }
+        return null;
+    }
+
+    // 过长的文本多为动态内容，不用作条件
+    private static String label(CharSequence text) {
+        if (text == null || text.length() == 0 || text.length() > MAX_TEXT_LENGTH) return null;
+        return text.toString();
+    }
+
+    private static List<Integer> rect(Rect bounds) {
+        return Arrays.asList(bounds.left, bounds.top, bounds.right, bounds.bottom);
+    }
+}
@@ -9,11 +9,11 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.graphics.Path;
 import android.graphics.Rect;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
@@ -22,19 +22,21 @@ import android.view.accessibility.AccessibilityNodeInfo;
 
 import com.kingsware.irpa.zeromq.ZeromqService;
 
-import java.time.Instant;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class AutoAccessibilityService extends AccessibilityService {
     private static final String TAG = "AutoAccessibilityService";
-    private static final long STABILITY_DELAY = 100;  // 200ms无变化视为稳定
     private static final int SWIPE_TYPE_RIGHT = 1;
     private static final int SWIPE_TYPE_LEFT = 2;
     private static final int SWIPE_TYPE_UP = 3;
     private static final int SWIPE_TYPE_DOWN = 4;
+    private static final long SCROLL_SETTLE_TIMEOUT = 3000;
+    private static final long SCROLL_GESTURE_DURATION = 300;
 
     private static AutoAccessibilityService instance;
 
@@ -57,10 +59,12 @@ public class AutoAccessibilityService extends AccessibilityService {
     };
 
     private final Handler mHandler = new Handler(Looper.getMainLooper());
-    private Set<Integer> updatedNode;
+    private NodeSnapshot nodeSnapshot;
+    // 以下字段只在主线程访问
     private long updateTime;
-    private boolean mIsMonitoring;
-    private Runnable mUpdatingCheck;
+    private final List<PageWaiter> pageWaiters = new ArrayList<>();
+    // 录制中时不为 null
+    private volatile ActionRecorder recorder;
 
     public static AutoAccessibilityService getInstance() {
         return instance;
@@ -95,39 +99,84 @@ public class AutoAccessibilityService extends AccessibilityService {
             activityManager.killBackgroundProcesses(packageName);
         }
     }
-    public void click(Rect rect) {
-        AccessibilityNodeInfo node = findNode(rect);
-        if(node!=null){
-            Log.d(TAG, "click: "+node.getText());
-            node.performAction(AccessibilityNodeInfo.ACTION_CLICK);
-        } else {
-            Log.d(TAG, "click: "+rect.toString());
-            int centerX = rect.left + (rect.width() / 2);
-            int centerY = rect.top + (rect.height() / 2);
-            performClick(centerX, centerY, 50);
+    /**
+     * 点击 rect 对应的节点，找不到节点时点击 rect 中心
+     * @return 点击节点时立即完成；按坐标点击时在手势完成或被取消后完成
+     */
+    public CompletableFuture<HashMap<String, Object>> click(Rect rect) {
+        try (NodeScope scope = NodeScope.open()) {
+            AccessibilityNodeInfo node = scope.add(findNode(rect));
+            if(node!=null){
+                Log.d(TAG, "click: "+node.getText());
+                node.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        Log.d(TAG, "click: "+rect.toString());
+        int centerX = rect.left + (rect.width() / 2);
+        int centerY = rect.top + (rect.height() / 2);
+        return performClick(centerX, centerY, 50);
+    }
+    /**
+     * 点击满足条件的节点，有多个时取与条件中 bounds 提示交并比最大的
+     * @return 点击完成时完成的 future，同 click(Rect)；没有满足条件的节点时返回 null
+     */
+    public CompletableFuture<HashMap<String, Object>> click(NodeSelector selector) {
+        Rect bounds = new Rect();
+        synchronized (nodeSnapshot) {
+            ensureSnapshot();
+            if (!nodeSnapshot.find(selector, bounds)) return null;
         }
+        return click(bounds);
+    }
+
+    /**
+     * 开始录制用户操作，已在录制时丢弃之前的记录重新开始
+     */
+    public void startRecording() {
+        recorder = new ActionRecorder(this, getPackageName());
+    }
+
+    /**
+     * 结束录制
+     * @return 录制的脚本 {steps, defaults, events, duration}，没有在录制时返回 null
+     */
+    public HashMap<String, Object> stopRecording() {
+        ActionRecorder activeRecorder = recorder;
+        recorder = null;
+        return activeRecorder != null ? activeRecorder.finish() : null;
     }
+
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
     public void swipe(int type) {
+        swipe(type, Gesture.DEFAULT_DURATION);
+    }
+
+    /**
+     * 按方向滑动屏幕中部的一半距离
+     * @param duration 滑动持续时间(ms)
+     * @return 手势执行结果；未知的 type 只记录日志，返回 null
+     */
+    public CompletableFuture<HashMap<String, Object>> swipe(int type, long duration) {
         DisplayMetrics metrics = getResources().getDisplayMetrics();
         int height = metrics.heightPixels/4;
         int width = metrics.widthPixels/4;
         Log.d(TAG, "swipe: "+type +" position:"+width+":"+height);
         switch(type){
             case SWIPE_TYPE_RIGHT:
-                performSwipe(width, height*2, width*3, height*2);
-                break;
+                return performSwipe(width, height*2, width*3, height*2, duration);
             case SWIPE_TYPE_LEFT:
-                performSwipe(width*3, height*2, width, height*2);
-                break;
+                return performSwipe(width*3, height*2, width, height*2, duration);
             case SWIPE_TYPE_UP:
-                performSwipe(width*2, height*3, width, height);
-                break;
+                return performSwipe(width*2, height*3, width, height, duration);
             case SWIPE_TYPE_DOWN:
-                performSwipe(width*2, height, width, height*3);
-                break;
+                return performSwipe(width*2, height, width, height*3, duration);
             default:
                 Log.d(TAG, "Invalid swipe type: " + type);
-                break;
+                return null;
         }
     }
 
@@ -137,46 +186,75 @@ public class AutoAccessibilityService extends AccessibilityService {
      * @param y Y坐标
      * @param duration 点击持续时间(ms)
      */
-    private void performClick(int x, int y, int duration) {
-        Path clickPath = new Path();
-        clickPath.moveTo(x, y);
-
-        GestureDescription.StrokeDescription stroke =
-                new GestureDescription.StrokeDescription(
-                        clickPath, 0, duration);
-
-        dispatchGesture(
-                new GestureDescription.Builder()
-                        .addStroke(stroke)
-                        .build(),
-                null,
-                null);
-    }
-
-    private void performSwipe(int startX, int startY, int endX, int endY) {
-        // 创建手势路径
-        Path swipePath = new Path();
-        swipePath.moveTo(startX, startY);
-        swipePath.lineTo(endX, endY);
-        Log.i(TAG,"swipe:"+swipePath);
-        GestureDescription.Builder builder = new GestureDescription.Builder();
-        builder.addStroke(new GestureDescription.StrokeDescription(
-                swipePath, 0, 50)); // 500ms完成滑动
-
-        boolean ret = dispatchGesture(builder.build(), new GestureResultCallback() {
-            @Override
-            public void onCompleted(GestureDescription gestureDescription) {
-                super.onCompleted(gestureDescription);
-                Log.d(TAG, "Gesture executed successfully");
+    private CompletableFuture<HashMap<String, Object>> performClick(int x, int y, int duration) {
+        return perform(Gesture.tap(x, y, duration));
+    }
+
+    private CompletableFuture<HashMap<String, Object>> performSwipe(int startX, int startY, int endX, int endY, long duration) {
+        Log.i(TAG,"swipe:"+startX+","+startY+"->"+endX+","+endY);
+        return perform(Gesture.swipe(startX, startY, endX, endY, duration));
+    }
+
+    /**
+     * 执行手势，各段和各次重复依次在主线程派发，前一段完成后才派发下一段，可在任意线程调用
+     * @return 全部完成或被取消时返回 {completed, parts, executed, repeats, elapsed}
+     */
+    public CompletableFuture<HashMap<String, Object>> perform(Gesture gesture) {
+        GestureRun run = new GestureRun(gesture.build(), gesture.getRepeat(), gesture.getInterval());
+        mHandler.post(run);
+        return run.future;
+    }
+
+    private class GestureRun extends GestureResultCallback implements Runnable {
+        final CompletableFuture<HashMap<String, Object>> future = new CompletableFuture<>();
+        private final List<GestureDescription> parts;
+        private final int total;
+        private final long interval;
+        private final long startTime = SystemClock.uptimeMillis();
+        private int executed;
+
+        GestureRun(List<GestureDescription> parts, int repeat, long interval) {
+            this.parts = parts;
+            this.total = parts.size() * repeat;
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            if (!dispatchGesture(parts.get(executed % parts.size()), this, mHandler)) {
+                Log.e(TAG, "Gesture dispatch failed");
+                finish(false);
             }
+        }
 
-            @Override
-            public void onCancelled(GestureDescription gestureDescription) {
-                super.onCancelled(gestureDescription);
-                Log.e(TAG, "Gesture cancelled");
+        @Override
+        public void onCompleted(GestureDescription gestureDescription) {
+            executed++;
+            if (executed >= total) {
+                finish(true);
+            } else if (executed % parts.size() == 0) {
+                // 一次完整手势结束，手指已抬起，间隔后重复
+                mHandler.postDelayed(this, interval);
+            } else {
+                run();
             }
-        }, null);
-        Log.i(TAG,"Gesture exec:"+ret);
+        }
+
+        @Override
+        public void onCancelled(GestureDescription gestureDescription) {
+            Log.e(TAG, "Gesture cancelled");
+            finish(false);
+        }
+
+        private void finish(boolean completed) {
+            HashMap<String, Object> result = new HashMap<>();
+            result.put("completed", completed);
+            result.put("parts", parts.size());
+            result.put("executed", executed);
+            result.put("repeats", executed / parts.size());
+            result.put("elapsed", SystemClock.uptimeMillis() - startTime);
+            future.complete(result);
+        }
     }
 
 
@@ -185,21 +263,11 @@ public class AutoAccessibilityService extends AccessibilityService {
         super.onCreate();
         Log.d(TAG, "Accessibility Service Created");
         instance = this;
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        nodeSnapshot = new NodeSnapshot(metrics.widthPixels, metrics.heightPixels);
 
         Intent intent=new Intent(this, ZeromqService.class);
         bindService(intent,this.mqConnection,Context.BIND_AUTO_CREATE);
-
-        mUpdatingCheck = () -> {
-            if (mIsMonitoring) {
-                if(Instant.now().toEpochMilli()-updateTime>STABILITY_DELAY) {
-                    Log.d(TAG, "界面稳定性检测超时，强制判定加载完成");
-                    onPageLoaded();
-                } else {
-                    mHandler.postDelayed(mUpdatingCheck, STABILITY_DELAY);
-                }
-            }
-        };
-
     }
     @Override
     public void onServiceConnected() {
@@ -208,6 +276,8 @@ public class AutoAccessibilityService extends AccessibilityService {
         info.eventTypes = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
                 | AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
                 | AccessibilityEvent.TYPE_VIEW_CLICKED
+                // 录制长按
+                | AccessibilityEvent.TYPE_VIEW_LONG_CLICKED
                 | AccessibilityEvent.TYPE_GESTURE_DETECTION_END
                 | AccessibilityEvent.TYPE_VIEW_SCROLLED;
 
@@ -233,16 +303,31 @@ public class AutoAccessibilityService extends AccessibilityService {
     }
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
+        ActionRecorder activeRecorder = recorder;
+        if (activeRecorder != null) {
+            activeRecorder.onEvent(event);
+        }
         switch (event.getEventType()) {
             case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
                 Log.d(TAG, "Window stat change.");
+                nodeSnapshot.postClear();
                 handleContentChanged(event);
                 break;
 
             case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
-                if(event.getSource()!=null){
+                AccessibilityNodeInfo source = NodeScope.acquired(event.getSource());
+                if(source!=null){
                     Log.d(TAG, "Window content change.");
                     handleContentChanged(event);
+                    nodeSnapshot.post(source, isSubtreeChange(event.getContentChangeTypes()));
+                }
+                break;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                AccessibilityNodeInfo scrolled = NodeScope.acquired(event.getSource());
+                if(scrolled!=null){
+                    handleContentChanged(event);
+                    // 滚动会移动所有子节点的位置
+                    nodeSnapshot.post(scrolled, true);
                 }
                 break;
             case AccessibilityEvent.TYPE_GESTURE_DETECTION_END:
@@ -254,65 +339,245 @@ public class AutoAccessibilityService extends AccessibilityService {
         }
     }
 
-    public void startLoadMonitoring() {
-        mIsMonitoring = true;
-        updateTime = Instant.now().toEpochMilli();
-        updatedNode = new HashSet<>();
-        mHandler.postDelayed(mUpdatingCheck, STABILITY_DELAY);
+    /**
+     * 注册界面稳定等待，条件满足或超时后结果经 waiter 的回调返回，可在任意线程调用
+     */
+    public void awaitStable(PageWaiter waiter) {
+        mHandler.post(() -> {
+            waiter.startTime = SystemClock.uptimeMillis();
+            waiter.checkTask = () -> checkWaiter(waiter);
+            waiter.timeoutTask = () -> finishWaiter(waiter, false);
+            pageWaiters.add(waiter);
+            mHandler.postAtTime(waiter.timeoutTask, waiter.startTime + waiter.timeout);
+            mHandler.postAtTime(waiter.checkTask, waiter.startTime + waiter.quiet);
+        });
     }
+
+    /**
+     * 阻塞等待界面稳定，不能在主线程调用
+     * @param timeout 最长等待时间(ms)
+     * @return 超时前界面稳定返回 true
+     */
+    public boolean waitForStable(long timeout) throws InterruptedException {
+        PageWaiter waiter = new PageWaiter(PageWaiter.DEFAULT_QUIET, timeout);
+        awaitStable(waiter);
+        return Boolean.TRUE.equals(waiter.await().get("stable"));
+    }
+
     private void handleContentChanged(AccessibilityEvent event) {
-        if (mIsMonitoring) {
-            int sourceObjId = System.identityHashCode(event.getSource());
-            if(!updatedNode.contains(sourceObjId)) {
-                updatedNode.add(sourceObjId);
-                updateTime = Instant.now().toEpochMilli();
-                Log.i(TAG, "界面内容更新，重新计时");
+        updateTime = SystemClock.uptimeMillis();
+        // 界面有变化，各等待条件从此刻重新计算静默时间
+        for (PageWaiter waiter : pageWaiters) {
+            mHandler.removeCallbacks(waiter.checkTask);
+            mHandler.postAtTime(waiter.checkTask, updateTime + waiter.quiet);
+        }
+    }
+
+    private void checkWaiter(PageWaiter waiter) {
+        long quietSince = Math.max(updateTime, waiter.startTime);
+        if (SystemClock.uptimeMillis() - quietSince < waiter.quiet) {
+            return;
+        }
+        if (!waiter.hasTarget() || matchTarget(waiter)) {
+            finishWaiter(waiter, true);
+            return;
+        }
+        // 目标条件不满足：目标可能不触发内容变化事件就出现（如只换了窗口），每隔 quiet 重新检查，直到超时
+        mHandler.postAtTime(waiter.checkTask, SystemClock.uptimeMillis() + waiter.quiet);
+    }
+
+    private boolean matchTarget(PageWaiter waiter) {
+        try (NodeScope scope = NodeScope.open()) {
+            AccessibilityNodeInfo root = scope.root(this);
+            if (root == null) return false;
+            boolean matched = true;
+            if (waiter.packageName != null) {
+                matched = waiter.packageName.contentEquals(root.getPackageName() != null ? root.getPackageName() : "");
+            }
+            if (matched && waiter.viewId != null) {
+                matched = findViewByID(scope, root, waiter.viewId) != null;
+            }
+            if (matched && waiter.text != null) {
+                List<AccessibilityNodeInfo> nodes = scope.addAll(root.findAccessibilityNodeInfosByText(waiter.text));
+                matched = nodes != null && !nodes.isEmpty();
             }
+            return matched;
         }
     }
 
-    private void onPageLoaded() {
-        mIsMonitoring = false;
-        Log.i("PageLoad", "界面加载完成.");
+    private void finishWaiter(PageWaiter waiter, boolean stable) {
+        if (!pageWaiters.remove(waiter)) return;
+        mHandler.removeCallbacks(waiter.checkTask);
+        mHandler.removeCallbacks(waiter.timeoutTask);
+        HashMap<String, Object> result = new HashMap<>();
+        result.put("stable", stable);
+        result.put("elapsed", SystemClock.uptimeMillis() - waiter.startTime);
+        try (NodeScope scope = NodeScope.open()) {
+            AccessibilityNodeInfo root = scope.root(this);
+            if (root != null) {
+                result.put("package", root.getPackageName() != null ? root.getPackageName().toString() : null);
+            }
+        }
+        Log.i("PageLoad", stable ? "界面加载完成." : "界面稳定等待超时.");
+        waiter.finish(result);
+    }
 
-        // 执行后续操作...
-        //TODO
+    /**
+     * 只有文本、描述等属性变化时无需重新遍历子树
+     */
+    private static boolean isSubtreeChange(int changeTypes) {
+        int selfOnly = AccessibilityEvent.CONTENT_CHANGE_TYPE_TEXT
+                | AccessibilityEvent.CONTENT_CHANGE_TYPE_CONTENT_DESCRIPTION
+                | AccessibilityEvent.CONTENT_CHANGE_TYPE_STATE_DESCRIPTION
+                | AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_TITLE;
+        return changeTypes == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED
+                || (changeTypes & ~selfOnly) != 0;
     }
 
-    // 遍历界面结构（示例）
+    // 快照失效时从当前活动窗口重建，调用方持有 nodeSnapshot 锁
+    private void ensureSnapshot() {
+        if (!nodeSnapshot.isValid()) {
+            nodeSnapshot.rebuild(NodeScope.acquired(getRootInActiveWindow()));
+        }
+    }
+
+    // 在缓存快照中按交并比查找节点，返回的节点由调用方登记到作用域
     private AccessibilityNodeInfo findNode(Rect rect) {
-        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
-        List<AccessibilityNodeInfo> allNodes = new ArrayList<>();
-        traverseAllNodes(rootNode, allNodes);
-
-        AccessibilityNodeInfo targetNode = null;
-        float maxIoU = 0.0f;
-        // 打印所有元素边界信息
-        for (AccessibilityNodeInfo node : allNodes) {
-            Rect bounds = new Rect();
-            node.getBoundsInScreen(bounds);
-            float targetIoU = calculateIoU(bounds, rect);
-            if(targetIoU > maxIoU) {
-                maxIoU = targetIoU;
-                targetNode = node;
-            }
+        synchronized (nodeSnapshot) {
+            ensureSnapshot();
+            return nodeSnapshot.findBest(rect);
+        }
+    }
+
+    /**
+     * 节点树自 since 版本以来的差异，since 为 -1 时返回全量
+     */
+    public HashMap<String, Object> treeDiff(long since) {
+        synchronized (nodeSnapshot) {
+            ensureSnapshot();
+            return nodeSnapshot.diff(since);
+        }
+    }
+
+    /**
+     * 当前界面的结构哈希，见 NodeSnapshot.structureHash；没有活动窗口时返回 null
+     */
+    public Long structureHash() {
+        synchronized (nodeSnapshot) {
+            ensureSnapshot();
+            return nodeSnapshot.isValid() ? nodeSnapshot.structureHash() : null;
         }
+    }
 
-        // 必须回收节点
-        rootNode.recycle();
-        return targetNode;
+    /**
+     * 活动窗口的包名，没有活动窗口时返回 null
+     */
+    public String activePackage() {
+        synchronized (nodeSnapshot) {
+            ensureSnapshot();
+            return nodeSnapshot.getPackageName();
+        }
     }
 
-    private void traverseAllNodes(AccessibilityNodeInfo node, List<AccessibilityNodeInfo> nodes) {
-        if (node == null) return;
+    /**
+     * 节点计数，附带快照持有的节点数；不加快照锁，可在心跳中调用
+     */
+    public HashMap<String, Object> nodeStats() {
+        HashMap<String, Object> stats = NodeScope.stats();
+        stats.put("snapshot", nodeSnapshot.size());
+        return stats;
+    }
 
-        nodes.add(node);
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                traverseAllNodes(child, nodes);
+    /**
+     * 按条件查找节点，返回节点的简要描述
+     */
+    public List<HashMap<String, Object>> find(NodeSelector selector, int limit) {
+        synchronized (nodeSnapshot) {
+            ensureSnapshot();
+            return nodeSnapshot.query(selector, limit);
+        }
+    }
+
+    /**
+     * 导出节点树，rootId 为子树起点的节点 id，-1 为整棵树
+     * @return 起点不存在时返回 false
+     */
+    public boolean dump(TreeDump dump, int rootId) throws IOException {
+        synchronized (nodeSnapshot) {
+            ensureSnapshot();
+            return nodeSnapshot.dump(dump, rootId);
+        }
+    }
+
+    /**
+     * 滚动直到出现满足条件的节点，不能在主线程调用
+     * 每次优先对可滚动容器执行 ACTION_SCROLL_FORWARD/BACKWARD，不支持时用滑动手势代替，
+     * 滚动后等待界面稳定；滚动后节点树没有任何变化时认为已到列表末端。
+     * @param quiet 每次滚动后要求的静默时间(ms)
+     * @param timeout 总的最长时间(ms)
+     * @return {found, bounds, scrolls, end, elapsed}
+     */
+    public HashMap<String, Object> scrollTo(NodeSelector selector, boolean backward, int maxScrolls,
+                                            long quiet, long timeout) throws Exception {
+        long startTime = SystemClock.uptimeMillis();
+        Rect bounds = new Rect();
+        int scrolls = 0;
+        boolean found;
+        boolean end = false;
+        while (true) {
+            long version;
+            synchronized (nodeSnapshot) {
+                ensureSnapshot();
+                found = nodeSnapshot.find(selector, bounds);
+                version = nodeSnapshot.getVersion();
+            }
+            long remaining = timeout - (SystemClock.uptimeMillis() - startTime);
+            if (found || end || scrolls >= maxScrolls || remaining <= 0) break;
+            scrollOnce(selector.bounds, backward);
+            scrolls++;
+            PageWaiter waiter = new PageWaiter(quiet, Math.min(remaining, SCROLL_SETTLE_TIMEOUT));
+            awaitStable(waiter);
+            waiter.await();
+            synchronized (nodeSnapshot) {
+                ensureSnapshot();
+                end = nodeSnapshot.getVersion() == version;
+            }
+        }
+        Log.d(TAG, "scrollTo: " + selector + " found:" + found + " scrolls:" + scrolls);
+        HashMap<String, Object> result = new HashMap<>();
+        result.put("found", found);
+        if (found) {
+            result.put("bounds", Arrays.asList(bounds.left, bounds.top, bounds.right, bounds.bottom));
+        }
+        result.put("scrolls", scrolls);
+        result.put("end", end);
+        result.put("elapsed", SystemClock.uptimeMillis() - startTime);
+        return result;
+    }
+
+    // 滚动一次，优先使用容器的滚动动作
+    private void scrollOnce(Rect hint, boolean backward) throws Exception {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        Rect area = new Rect();
+        int x = hint != null ? hint.centerX() : metrics.widthPixels / 2;
+        int y = hint != null ? hint.centerY() : metrics.heightPixels / 2;
+        try (NodeScope scope = NodeScope.open()) {
+            AccessibilityNodeInfo container;
+            synchronized (nodeSnapshot) {
+                container = scope.add(nodeSnapshot.findScrollable(x, y, area));
+            }
+            if (container == null) {
+                area.set(0, 0, metrics.widthPixels, metrics.heightPixels);
+            } else if (container.performAction(backward
+                    ? AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD : AccessibilityNodeInfo.ACTION_SCROLL_FORWARD)) {
+                return;
             }
         }
+        // 在容器中部纵向滑过 60% 的高度
+        int span = area.height() * 3 / 10;
+        int fromY = backward ? area.centerY() - span : area.centerY() + span;
+        int toY = backward ? area.centerY() + span : area.centerY() - span;
+        perform(Gesture.swipe(area.centerX(), fromY, area.centerX(), toY, SCROLL_GESTURE_DURATION)).get();
     }
     public static float calculateIoU(Rect rect1, Rect rect2) {
         // 计算交集区域
@@ -340,9 +605,10 @@ public class AutoAccessibilityService extends AccessibilityService {
         return (float) intersectionArea / unionArea;
     }
 
-    private AccessibilityNodeInfo findViewByID(AccessibilityNodeInfo root, String id) {
-        List<AccessibilityNodeInfo> nodes = root.findAccessibilityNodeInfosByViewId(id);
-        return !nodes.isEmpty() ? nodes.get(0) : null;
+    // 查找结果全部登记到作用域，返回第一个
+    private AccessibilityNodeInfo findViewByID(NodeScope scope, AccessibilityNodeInfo root, String id) {
+        List<AccessibilityNodeInfo> nodes = scope.addAll(root.findAccessibilityNodeInfosByViewId(id));
+        return nodes != null && !nodes.isEmpty() ? nodes.get(0) : null;
     }
     @Override
     public void onInterrupt() {
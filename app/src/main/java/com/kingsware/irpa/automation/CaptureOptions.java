@@ -0,0 +1,67 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * 截图参数：裁剪区域、缩放、灰度和输出格式，全部在设备端编码前完成
+ */
+public class CaptureOptions {
+    Bitmap.CompressFormat format = Bitmap.CompressFormat.JPEG;
+    int quality = ScreenCaptureService.DEFAULT_QUALITY;
+    Rect crop;
+    float scale = 1.0f;
+    int maxSize;
+    boolean grayscale;
+
+    public CaptureOptions setFormat(Bitmap.CompressFormat format) {
+        this.format = format;
+        return this;
+    }
+
+    public CaptureOptions setQuality(int quality) {
+        this.quality = Math.max(0, Math.min(100, quality));
+        return this;
+    }
+
+    /**
+     * 只截取屏幕坐标中的 crop 区域
+     */
+    public CaptureOptions setCrop(Rect crop) {
+        this.crop = crop;
+        return this;
+    }
+
+    /**
+     * 输出相对裁剪区域的缩放比例，取值 (0, 1]
+     */
+    public CaptureOptions setScale(float scale) {
+        this.scale = scale > 0 && scale < 1 ? scale : 1.0f;
+        return this;
+    }
+
+    /**
+     * 输出图像的最长边上限，0 表示不限制
+     */
+    public CaptureOptions setMaxSize(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        return this;
+    }
+
+    public CaptureOptions setGrayscale(boolean grayscale) {
+        this.grayscale = grayscale;
+        return this;
+    }
+
+    /**
+     * 按缩放比例和最长边上限计算输出尺寸，写入 size[0]、size[1]
+     */
+    void outputSize(int width, int height, int[] size) {
+        float factor = scale;
+        if (maxSize > 0 && Math.max(width, height) * factor > maxSize) {
+            factor = (float) maxSize / Math.max(width, height);
+        }
+        size[0] = Math.max(1, Math.round(width * factor));
+        size[1] = Math.max(1, Math.round(height * factor));
+    }
+}
@@ -0,0 +1,248 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.Image;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 截屏路径复用的位图和输出缓冲
+ * 位图按屏幕大小分配，使用时通过 reconfigure 调整尺寸；压缩输出写入可复用的缓冲，
+ * 稳定运行时每帧不再产生新的像素或字节数组。
+ */
+public class FramePool {
+    private static final int MAX_POOLED = 4;
+
+    /**
+     * 可复用的输出缓冲，使用完后调用 release 归还
+     */
+    public static class Buffer extends OutputStream {
+        private final FramePool pool;
+        private byte[] data;
+        private int size;
+
+        Buffer(FramePool pool, int capacity) {
+            this.pool = pool;
+            this.data = new byte[capacity];
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(size + 1);
+            data[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(size + len);
+            System.arraycopy(b, off, data, size, len);
+            size += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > data.length) {
+                byte[] grown = new byte[Math.max(capacity, data.length * 2)];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+        }
+
+        /**
+         * 底层数组，有效数据为前 size() 个字节
+         */
+        public byte[] array() {
+            return data;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void release() {
+            pool.releaseBuffer(this);
+        }
+    }
+
+    // 各线程各自复用的绘制对象
+    private static class Scratch {
+        final Canvas canvas = new Canvas();
+        final Rect src = new Rect();
+        final Rect dst = new Rect();
+        final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        final Paint grayPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        final int[] size = new int[2];
+
+        Scratch() {
+            ColorMatrix matrix = new ColorMatrix();
+            matrix.setSaturation(0);
+            grayPaint.setColorFilter(new ColorMatrixColorFilter(matrix));
+        }
+    }
+
+    private final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+    private final ArrayDeque<Buffer> buffers = new ArrayDeque<>();
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    private final int screenWidth;
+    private final int screenHeight;
+    private final int bufferCapacity;
+    private ByteBuffer packed;
+
+    public FramePool(int screenWidth, int screenHeight) {
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        // 压缩后的截图通常不超过原始像素字节数的 1/4
+        this.bufferCapacity = screenWidth * screenHeight;
+    }
+
+    /**
+     * 只提供输出缓冲的池，如节点树分块
+     */
+    public FramePool(int bufferCapacity) {
+        this.screenWidth = 0;
+        this.screenHeight = 0;
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    public synchronized Buffer acquireBuffer() {
+        Buffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new Buffer(this, bufferCapacity);
+        }
+        buffer.size = 0;
+        return buffer;
+    }
+
+    synchronized void releaseBuffer(Buffer buffer) {
+        if (buffers.size() < MAX_POOLED) {
+            buffers.push(buffer);
+        }
+    }
+
+    /**
+     * 取一个指定尺寸的 ARGB_8888 位图，内容未定义
+     */
+    public synchronized Bitmap acquireBitmap(int width, int height) {
+        Bitmap bitmap = bitmaps.poll();
+        int bytes = width * height * 4;
+        if (bitmap != null && bitmap.getAllocationByteCount() < bytes) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+        if (bitmap == null) {
+            // 至少按整屏分配，之后各种尺寸都能复用
+            if (bytes >= screenWidth * screenHeight * 4) {
+                return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+            bitmap = Bitmap.createBitmap(screenWidth, screenHeight, Bitmap.Config.ARGB_8888);
+        }
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return bitmap;
+    }
+
+    public synchronized void releaseBitmap(Bitmap bitmap) {
+        if (bitmaps.size() < MAX_POOLED) {
+            bitmaps.push(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * 将图像复制到池中的位图
+     * 行有填充时位图宽度为 rowStride / pixelStride，有效内容位于左上角 image 宽高范围内，
+     * 像素只复制一次；用完后调用 releaseBitmap 归还
+     */
+    public Bitmap fromImage(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int height = image.getHeight();
+        int strideWidth = rowStride / pixelStride;
+        Bitmap bitmap = acquireBitmap(strideWidth, height);
+        buffer.rewind();
+        if (buffer.remaining() >= rowStride * height) {
+            bitmap.copyPixelsFromBuffer(buffer);
+        } else {
+            // 最后一行不带填充时补齐到完整行宽
+            synchronized (this) {
+                if (packed == null || packed.capacity() < rowStride * height) {
+                    packed = ByteBuffer.allocateDirect(rowStride * height);
+                }
+                packed.clear();
+                packed.put(buffer);
+                packed.position(0);
+                packed.limit(rowStride * height);
+                bitmap.copyPixelsFromBuffer(packed);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * 将 source 中 region 区域压缩到缓冲，region 为 null 时取左上角 width × height 的完整图像
+     */
+    public Buffer encode(Bitmap source, int width, int height, Rect region,
+                         Bitmap.CompressFormat format, int quality) {
+        Scratch s = scratch.get();
+        if (region == null) {
+            s.src.set(0, 0, width, height);
+        } else {
+            s.src.set(region);
+        }
+        return encode(source, s, s.src.width(), s.src.height(), false, format, quality);
+    }
+
+    /**
+     * 按截图参数裁剪、缩放、去色后压缩到缓冲，裁剪区域限制在 width × height 范围内
+     * @param outSize 非空时写入输出图像的宽高
+     * @throws IllegalArgumentException 裁剪区域完全在屏幕外
+     */
+    public Buffer encode(Bitmap source, int width, int height, CaptureOptions options, int[] outSize) {
+        Scratch s = scratch.get();
+        s.src.set(0, 0, width, height);
+        if (options.crop != null && !s.src.intersect(options.crop)) {
+            throw new IllegalArgumentException("crop rect outside screen: " + options.crop.toShortString());
+        }
+        options.outputSize(s.src.width(), s.src.height(), s.size);
+        if (outSize != null) {
+            outSize[0] = s.size[0];
+            outSize[1] = s.size[1];
+        }
+        return encode(source, s, s.size[0], s.size[1], options.grayscale, options.format, options.quality);
+    }
+
+    private Buffer encode(Bitmap source, Scratch s, int dstWidth, int dstHeight, boolean grayscale,
+                          Bitmap.CompressFormat format, int quality) {
+        Buffer output = acquireBuffer();
+        if (!grayscale && s.src.left == 0 && s.src.top == 0
+                && s.src.width() == source.getWidth() && s.src.height() == source.getHeight()
+                && dstWidth == source.getWidth() && dstHeight == source.getHeight()) {
+            source.compress(format, quality, output);
+            return output;
+        }
+        s.dst.set(0, 0, dstWidth, dstHeight);
+        Bitmap target = acquireBitmap(dstWidth, dstHeight);
+        s.canvas.setBitmap(target);
+        s.canvas.drawBitmap(source, s.src, s.dst, grayscale ? s.grayPaint : s.scalePaint);
+        s.canvas.setBitmap(null);
+        target.compress(format, quality, output);
+        releaseBitmap(target);
+        return output;
+    }
+}
@@ -0,0 +1,209 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 屏幕帧推送
+ * 按设定帧率从新到达的图像中取帧，屏幕按 tileSize 分块计算哈希，与上次发送的帧比较：
+ * 没有变化的帧跳过，局部变化时只编码发送变化区域，变化过大时发送整帧。
+ * 截屏线程只把帧复制到位图，哈希和编码在推送线程完成；上一帧还在处理时新帧被丢弃。
+ */
+public class FrameStreamer {
+    private static final String TAG = "FrameStreamer";
+    private static final int MAX_RECTS = 16;
+    private static final float FULL_FRAME_RATIO = 0.6f;
+
+    public interface FrameListener {
+        /**
+         * @param header 帧描述，rects 与 frames 一一对应
+         * @param frames 各区域压缩后的图像数据，发送后需逐个 release
+         */
+        void onFrame(HashMap<String, Object> header, List<FramePool.Buffer> frames);
+    }
+
+    private final long interval;
+    private final Bitmap.CompressFormat format;
+    private final int quality;
+    private final int tileSize;
+    private final FrameListener listener;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> new Thread(r, "FrameStreamer"));
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private volatile long lastSent;
+
+    // 以下只在推送线程访问
+    private ByteBuffer pixels;
+    private int[] tileHashes;
+    private int[] lastHashes;
+    private boolean[] dirty;
+    private int cols;
+    private int rows;
+    private int seq;
+
+    public FrameStreamer(int fps, Bitmap.CompressFormat format, int quality, int tileSize, FrameListener listener) {
+        this.interval = 1000L / Math.max(1, fps);
+        this.format = format;
+        this.quality = quality;
+        this.tileSize = Math.max(16, tileSize);
+        this.listener = listener;
+    }
+
+    /**
+     * 是否需要新帧：距上次发送已满一个帧间隔且推送线程空闲，在截屏线程调用
+     */
+    boolean wants(long now) {
+        return !busy.get() && now - lastSent >= interval;
+    }
+
+    /**
+     * 交给推送线程处理已复制到位图的帧，处理完后归还位图
+     * @param bitmap 由 pool.fromImage 取得，宽度可能含行填充，有效内容为左上角 width × height
+     */
+    void offer(Bitmap bitmap, int width, int height, long timestamp, FramePool pool) {
+        if (!busy.compareAndSet(false, true)) {
+            pool.releaseBitmap(bitmap);
+            return;
+        }
+        try {
+            worker.execute(() -> {
+                try {
+                    process(bitmap, width, height, timestamp, pool);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Frame error: " + e.getMessage());
+                } finally {
+                    pool.releaseBitmap(bitmap);
+                    busy.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已停止
+            pool.releaseBitmap(bitmap);
+            busy.set(false);
+        }
+    }
+
+    /**
+     * 停止推送线程，正在处理的帧仍会发送
+     */
+    void stop() {
+        worker.shutdown();
+    }
+
+    private void process(Bitmap bitmap, int width, int height, long timestamp, FramePool pool) {
+        if (tileHashes == null || cols != (width + tileSize - 1) / tileSize || rows != (height + tileSize - 1) / tileSize) {
+            cols = (width + tileSize - 1) / tileSize;
+            rows = (height + tileSize - 1) / tileSize;
+            tileHashes = new int[cols * rows];
+            lastHashes = null;
+            dirty = new boolean[cols * rows];
+        }
+        hashTiles(bitmap, width, height);
+
+        int dirtyCount = 0;
+        for (int i = 0; i < tileHashes.length; i++) {
+            dirty[i] = lastHashes == null || lastHashes[i] != tileHashes[i];
+            if (dirty[i]) dirtyCount++;
+        }
+        if (dirtyCount == 0) return;
+
+        List<Rect> rects = dirtyCount > tileHashes.length * FULL_FRAME_RATIO ? null : mergeDirtyTiles(width, height);
+        boolean full = rects == null || rects.size() > MAX_RECTS;
+        if (full) {
+            rects = new ArrayList<>();
+            rects.add(new Rect(0, 0, width, height));
+        }
+
+        List<FramePool.Buffer> frames = new ArrayList<>(rects.size());
+        List<List<Integer>> rectList = new ArrayList<>(rects.size());
+        for (Rect rect : rects) {
+            frames.add(pool.encode(bitmap, width, height, rect, format, quality));
+            rectList.add(Arrays.asList(rect.left, rect.top, rect.right, rect.bottom));
+        }
+
+        if (lastHashes == null) lastHashes = new int[tileHashes.length];
+        System.arraycopy(tileHashes, 0, lastHashes, 0, tileHashes.length);
+        lastSent = SystemClock.uptimeMillis();
+
+        HashMap<String, Object> header = new HashMap<>();
+        header.put("seq", seq++);
+        header.put("timestamp", timestamp);
+        header.put("width", width);
+        header.put("height", height);
+        header.put("full", full);
+        header.put("rects", rectList);
+        listener.onFrame(header, frames);
+        Log.d(TAG, "frame " + seq + ": " + rects.size() + " rects, " + dirtyCount + " dirty tiles");
+    }
+
+    private void hashTiles(Bitmap bitmap, int width, int height) {
+        int bytes = bitmap.getByteCount();
+        if (pixels == null || pixels.capacity() < bytes) {
+            pixels = ByteBuffer.allocateDirect(bytes);
+        }
+        pixels.clear();
+        bitmap.copyPixelsToBuffer(pixels);
+        ByteBuffer buffer = pixels;
+        int rowStride = bitmap.getRowBytes();
+        int pixelStride = 4;
+        Arrays.fill(tileHashes, 1);
+        for (int y = 0; y < height; y++) {
+            int rowBase = (y / tileSize) * cols;
+            int offset = y * rowStride;
+            for (int x = 0; x < width; x++) {
+                int tile = rowBase + x / tileSize;
+                tileHashes[tile] = 31 * tileHashes[tile] + buffer.getInt(offset + x * pixelStride);
+            }
+        }
+    }
+
+    /**
+     * 将变化的分块合并为矩形：每行连续的分块合成一段，相邻行列范围相同的段再纵向合并
+     */
+    private List<Rect> mergeDirtyTiles(int width, int height) {
+        List<Rect> rects = new ArrayList<>();
+        List<Rect> open = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+            List<Rect> current = new ArrayList<>();
+            int col = 0;
+            while (col < cols) {
+                if (!dirty[row * cols + col]) {
+                    col++;
+                    continue;
+                }
+                int start = col;
+                while (col < cols && dirty[row * cols + col]) col++;
+                Rect run = new Rect(start * tileSize, row * tileSize,
+                        Math.min(width, col * tileSize), Math.min(height, (row + 1) * tileSize));
+                Rect above = null;
+                for (Rect r : open) {
+                    if (r.left == run.left && r.right == run.right) {
+                        above = r;
+                        break;
+                    }
+                }
+                if (above != null) {
+                    above.bottom = run.bottom;
+                    open.remove(above);
+                    current.add(above);
+                } else {
+                    current.add(run);
+                    rects.add(run);
+                }
+            }
+            open = current;
+        }
+        return rects;
+    }
+}
@@ -0,0 +1,261 @@
+package com.kingsware.irpa.automation;
+
+import android.accessibilityservice.GestureDescription;
+import android.graphics.Path;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * 可组合的手势：多根手指的笔画，每个笔画是一条折线，可指定起始延迟、持续时间或速度，
+ * 以及移动前按住不动的时间（拖拽）。
+ * 手势按时间切分为多段，相邻段之间用 willContinue 连接，手指不抬起：
+ * 按住后移动、超过单次手势时长上限的长距离滚动都依赖这种连续笔画。
+ * 整个手势还可以重复多次，由设备端依次执行，不需要控制端逐次下发。
+ */
+public class Gesture {
+    public static final long DEFAULT_DURATION = 50;
+    // 没有指定持续时间和速度时的移动速度(px/s)
+    public static final float DEFAULT_VELOCITY = 2000;
+
+    static class Stroke {
+        final float[] points;
+        final long delay;
+        final long hold;
+        final long duration;
+
+        Stroke(float[] points, long delay, long hold, long duration) {
+            this.points = points;
+            this.delay = delay;
+            this.hold = hold;
+            this.duration = duration;
+        }
+
+        long end() {
+            return delay + hold + duration;
+        }
+
+        /**
+         * 时刻 t 手指所在位置，移动阶段按路径长度匀速插值
+         */
+        void position(long t, float[] out) {
+            float target = length() * progress(t);
+            float x = points[0], y = points[1];
+            for (int i = 2; i < points.length; i += 2) {
+                float segment = distance(x, y, points[i], points[i + 1]);
+                if (segment >= target && segment > 0) {
+                    float f = target / segment;
+                    out[0] = x + (points[i] - x) * f;
+                    out[1] = y + (points[i + 1] - y) * f;
+                    return;
+                }
+                target -= segment;
+                x = points[i];
+                y = points[i + 1];
+            }
+            out[0] = x;
+            out[1] = y;
+        }
+
+        float length() {
+            return Gesture.length(points);
+        }
+
+        /**
+         * [from, to] 时间段内经过的路径
+         */
+        Path path(long from, long to) {
+            float[] p = new float[2];
+            Path path = new Path();
+            position(from, p);
+            path.moveTo(p[0], p[1]);
+            float moveStart = length() * progress(from);
+            float moveEnd = length() * progress(to);
+            // 中间经过的折点
+            float walked = 0;
+            for (int i = 2; i < points.length; i += 2) {
+                walked += distance(points[i - 2], points[i - 1], points[i], points[i + 1]);
+                if (walked > moveStart && walked < moveEnd) {
+                    path.lineTo(points[i], points[i + 1]);
+                }
+            }
+            if (moveEnd > moveStart) {
+                position(to, p);
+                path.lineTo(p[0], p[1]);
+            }
+            return path;
+        }
+
+        private float progress(long t) {
+            if (duration <= 0) return 0;
+            return Math.max(0, Math.min(1, (float) (t - delay - hold) / duration));
+        }
+    }
+
+    private final List<Stroke> strokes = new ArrayList<>();
+    private long segment;
+    private int repeat = 1;
+    private long interval;
+
+    /**
+     * 添加一个笔画
+     * @param points 折线坐标 [x0,y0,x1,y1,...]，只有一个点时为按压
+     * @param delay 相对手势开始的延迟(ms)
+     * @param hold 移动前按住不动的时间(ms)
+     * @param duration 移动持续时间(ms)，小于等于 0 时按 velocity 计算
+     * @param velocity 移动速度(px/s)，小于等于 0 时使用默认速度
+     */
+    public Gesture addStroke(float[] points, long delay, long hold, long duration, float velocity) {
+        if (points.length < 2 || points.length % 2 != 0) {
+            throw new IllegalArgumentException("invalid stroke points");
+        }
+        if (delay < 0 || hold < 0) {
+            throw new IllegalArgumentException("invalid stroke timing");
+        }
+        float length = length(points);
+        if (duration <= 0) {
+            if (length == 0) {
+                duration = hold > 0 ? 0 : DEFAULT_DURATION;
+            } else {
+                duration = Math.max(1, (long) (length * 1000 / (velocity > 0 ? velocity : DEFAULT_VELOCITY)));
+            }
+        }
+        strokes.add(new Stroke(points, delay, hold, duration));
+        return this;
+    }
+
+    public Gesture addStroke(float[] points, long duration) {
+        return addStroke(points, 0, 0, duration, 0);
+    }
+
+    /**
+     * 每段的最长时间(ms)，超过时切分为连续的多段，0 表示只在必要时切分
+     */
+    public Gesture setSegment(long segment) {
+        this.segment = segment;
+        return this;
+    }
+
+    /**
+     * 整个手势重复执行的次数和间隔(ms)
+     */
+    public Gesture setRepeat(int repeat, long interval) {
+        this.repeat = Math.max(1, repeat);
+        this.interval = Math.max(0, interval);
+        return this;
+    }
+
+    public int getRepeat() {
+        return repeat;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public int getStrokeCount() {
+        return strokes.size();
+    }
+
+    public long getDuration() {
+        long duration = 0;
+        for (Stroke stroke : strokes) {
+            duration = Math.max(duration, stroke.end());
+        }
+        return duration;
+    }
+
+    public static Gesture tap(float x, float y, long duration) {
+        return new Gesture().addStroke(new float[]{x, y}, duration);
+    }
+
+    public static Gesture swipe(float startX, float startY, float endX, float endY, long duration) {
+        return new Gesture().addStroke(new float[]{startX, startY, endX, endY}, duration);
+    }
+
+    /**
+     * 双指缩放：两指以 (x, y) 为中心沿 angle 方向对称移动，间距从 from 变为 to，
+     * to 大于 from 为放大，反之为缩小
+     */
+    public static Gesture pinch(float x, float y, float from, float to, float angle, long duration) {
+        double radians = Math.toRadians(angle);
+        float dx = (float) Math.cos(radians) / 2;
+        float dy = (float) Math.sin(radians) / 2;
+        return new Gesture()
+                .addStroke(new float[]{x - dx * from, y - dy * from, x - dx * to, y - dy * to}, duration)
+                .addStroke(new float[]{x + dx * from, y + dy * from, x + dx * to, y + dy * to}, duration);
+    }
+
+    /**
+     * 切分为依次执行的手势段，后一段的笔画接续前一段未结束的笔画
+     */
+    public List<GestureDescription> build() {
+        if (strokes.isEmpty()) {
+            throw new IllegalArgumentException("empty gesture");
+        }
+        if (strokes.size() > GestureDescription.getMaxStrokeCount()) {
+            throw new IllegalArgumentException("too many strokes: " + strokes.size());
+        }
+        long total = getDuration();
+        long maxDuration = GestureDescription.getMaxGestureDuration();
+        long step = segment > 0 ? Math.min(segment, maxDuration) : maxDuration;
+        // 切分点：按住结束的时刻和固定间隔，只保留有笔画跨过的时刻
+        TreeSet<Long> cuts = new TreeSet<>();
+        for (Stroke stroke : strokes) {
+            if (stroke.hold > 0 && stroke.duration > 0) cuts.add(stroke.delay + stroke.hold);
+        }
+        for (long t = step; t < total; t += step) {
+            cuts.add(t);
+        }
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        for (long t : cuts) {
+            for (Stroke stroke : strokes) {
+                if (stroke.delay < t && stroke.end() > t) {
+                    bounds.add(t);
+                    break;
+                }
+            }
+        }
+        bounds.add(total);
+
+        List<GestureDescription> parts = new ArrayList<>();
+        HashMap<Stroke, GestureDescription.StrokeDescription> continued = new HashMap<>();
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            long from = bounds.get(i), to = bounds.get(i + 1);
+            GestureDescription.Builder builder = new GestureDescription.Builder();
+            HashMap<Stroke, GestureDescription.StrokeDescription> next = new HashMap<>();
+            for (Stroke stroke : strokes) {
+                if (stroke.delay >= to || stroke.end() <= from) continue;
+                long start = Math.max(stroke.delay, from);
+                long end = Math.min(stroke.end(), to);
+                long duration = end - start;
+                boolean willContinue = stroke.end() > to;
+                Path path = stroke.path(start, end);
+                GestureDescription.StrokeDescription previous = continued.get(stroke);
+                GestureDescription.StrokeDescription description = previous != null
+                        ? previous.continueStroke(path, start - from, duration, willContinue)
+                        : new GestureDescription.StrokeDescription(path, start - from, duration, willContinue);
+                builder.addStroke(description);
+                if (willContinue) next.put(stroke, description);
+            }
+            continued = next;
+            parts.add(builder.build());
+        }
+        return parts;
+    }
+
+    private static float length(float[] points) {
+        float length = 0;
+        for (int i = 2; i < points.length; i += 2) {
+            length += distance(points[i - 2], points[i - 1], points[i], points[i + 1]);
+        }
+        return length;
+    }
+
+    private static float distance(float x0, float y0, float x1, float y1) {
+        return (float) Math.hypot(x1 - x0, y1 - y0);
+    }
+}
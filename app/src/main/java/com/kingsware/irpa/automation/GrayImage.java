@@ -0,0 +1,198 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 灰度图，用于模板匹配等图像计算
+ * 直接从 RGBA 图像平面按块平均降采样，不经过 Bitmap；亮度取 (r*77 + g*150 + b*29) >> 8。
+ */
+public class GrayImage {
+    public final int width;
+    public final int height;
+    public final float[] data;
+    // sample 每个采样点的块大小
+    private static final int SAMPLE_SIZE = 4;
+
+    public GrayImage(int width, int height) {
+        this(width, height, new float[width * height]);
+    }
+
+    private GrayImage(int width, int height, float[] data) {
+        this.width = width;
+        this.height = height;
+        this.data = data;
+    }
+
+    /**
+     * 从 RGBA_8888 图像按 factor × factor 块平均降采样，处理行填充
+     */
+    public static GrayImage fromImage(Image image, int factor) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int width = image.getWidth() / factor;
+        int height = image.getHeight() / factor;
+        GrayImage gray = new GrayImage(width, height);
+        float[] data = gray.data;
+        float scale = 1f / (factor * factor);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int dy = 0; dy < factor; dy++) {
+                int offset = (y * factor + dy) * rowStride;
+                for (int x = 0; x < width; x++) {
+                    int sum = 0;
+                    int pos = offset + x * factor * pixelStride;
+                    for (int dx = 0; dx < factor; dx++, pos += pixelStride) {
+                        sum += luminance(buffer.get(pos), buffer.get(pos + 1), buffer.get(pos + 2));
+                    }
+                    data[row + x] += sum;
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                data[row + x] *= scale;
+            }
+        }
+        return gray;
+    }
+
+    /**
+     * 在图像上均匀取 columns × rows 个采样点，每点取周围 SAMPLE_SIZE × SAMPLE_SIZE 块的平均亮度，
+     * 只读取少量像素，用于计算哈希等不需要完整降采样的场合
+     */
+    public static GrayImage sample(Image image, int columns, int rows) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int size = Math.min(SAMPLE_SIZE, Math.min(imageWidth / columns, imageHeight / rows));
+        GrayImage gray = new GrayImage(columns, rows);
+        if (size <= 0) return gray;
+        float scale = 1f / (size * size);
+        for (int y = 0; y < rows; y++) {
+            int top = (2 * y + 1) * imageHeight / (2 * rows) - size / 2;
+            for (int x = 0; x < columns; x++) {
+                int left = (2 * x + 1) * imageWidth / (2 * columns) - size / 2;
+                int sum = 0;
+                for (int dy = 0; dy < size; dy++) {
+                    int pos = (top + dy) * rowStride + left * pixelStride;
+                    for (int dx = 0; dx < size; dx++, pos += pixelStride) {
+                        sum += luminance(buffer.get(pos), buffer.get(pos + 1), buffer.get(pos + 2));
+                    }
+                }
+                gray.data[y * columns + x] = sum * scale;
+            }
+        }
+        return gray;
+    }
+
+    /**
+     * 从位图转换，按 factor × factor 块平均降采样
+     */
+    public static GrayImage fromBitmap(Bitmap bitmap, int factor) {
+        return fromBitmap(bitmap, bitmap.getWidth(), bitmap.getHeight(), factor);
+    }
+
+    /**
+     * 从位图左上角 srcWidth × srcHeight 的范围转换，用于 FramePool.fromImage 带行填充的位图
+     */
+    public static GrayImage fromBitmap(Bitmap bitmap, int srcWidth, int srcHeight, int factor) {
+        int width = srcWidth / factor;
+        int height = srcHeight / factor;
+        GrayImage gray = new GrayImage(width, height);
+        int[] pixels = new int[srcWidth];
+        float scale = 1f / (factor * factor);
+        for (int y = 0; y < height * factor; y++) {
+            bitmap.getPixels(pixels, 0, srcWidth, 0, y, srcWidth, 1);
+            int row = (y / factor) * width;
+            for (int x = 0; x < width * factor; x++) {
+                int c = pixels[x];
+                gray.data[row + x / factor] += luminance((byte) (c >> 16), (byte) (c >> 8), (byte) c) * scale;
+            }
+        }
+        return gray;
+    }
+
+    /**
+     * 宽高各缩小一半，2 × 2 块平均
+     */
+    public GrayImage half() {
+        int w = width / 2;
+        int h = height / 2;
+        GrayImage out = new GrayImage(w, h);
+        for (int y = 0; y < h; y++) {
+            int src = y * 2 * width;
+            for (int x = 0; x < w; x++, src += 2) {
+                out.data[y * w + x] = (data[src] + data[src + 1] + data[src + width] + data[src + width + 1]) * 0.25f;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 双线性缩放到指定尺寸
+     */
+    public GrayImage resize(int w, int h) {
+        if (w == width && h == height) return this;
+        GrayImage out = new GrayImage(w, h);
+        float sx = (float) width / w;
+        float sy = (float) height / h;
+        for (int y = 0; y < h; y++) {
+            float fy = Math.max(0, (y + 0.5f) * sy - 0.5f);
+            int y0 = Math.min((int) fy, height - 1);
+            int y1 = Math.min(y0 + 1, height - 1);
+            float wy = fy - y0;
+            for (int x = 0; x < w; x++) {
+                float fx = Math.max(0, (x + 0.5f) * sx - 0.5f);
+                int x0 = Math.min((int) fx, width - 1);
+                int x1 = Math.min(x0 + 1, width - 1);
+                float wx = fx - x0;
+                float top = data[y0 * width + x0] * (1 - wx) + data[y0 * width + x1] * wx;
+                float bottom = data[y1 * width + x0] * (1 - wx) + data[y1 * width + x1] * wx;
+                out.data[y * w + x] = top * (1 - wy) + bottom * wy;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 裁剪出 rect 与图像相交的部分，没有交集时返回 null
+     */
+    public GrayImage crop(Rect rect) {
+        int left = Math.max(0, rect.left);
+        int top = Math.max(0, rect.top);
+        int right = Math.min(width, rect.right);
+        int bottom = Math.min(height, rect.bottom);
+        if (right <= left || bottom <= top) return null;
+        GrayImage out = new GrayImage(right - left, bottom - top);
+        for (int y = top; y < bottom; y++) {
+            System.arraycopy(data, y * width + left, out.data, (y - top) * out.width, out.width);
+        }
+        return out;
+    }
+
+    /**
+     * 差值哈希：缩放到 9 × 8，每行相邻像素左边亮于右边时对应位为 1
+     */
+    public long dHash() {
+        GrayImage small = resize(9, 8);
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                hash <<= 1;
+                if (small.data[y * 9 + x] > small.data[y * 9 + x + 1]) hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    static int luminance(byte r, byte g, byte b) {
+        return ((r & 0xff) * 77 + (g & 0xff) * 150 + (b & 0xff) * 29) >> 8;
+    }
+}
@@ -0,0 +1,127 @@
+package com.kingsware.irpa.automation;
+
+import android.accessibilityservice.AccessibilityService;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 节点的生命周期管理
+ * 一次操作中取得的节点都登记到作用域，作用域关闭时统一回收，中途返回或抛出异常也不会遗漏。
+ * 快照等长期持有节点的地方用 acquired 和 recycle 登记，全部节点的取得和回收都计数，
+ * 两者之差即仍未回收的节点数，随心跳上报，用来发现长时间运行后的节点泄漏。
+ * 每个线程复用一个作用域及其列表，不为每次操作分配。
+ */
+public class NodeScope implements AutoCloseable {
+    private static final AtomicLong obtained = new AtomicLong();
+    private static final AtomicLong recycled = new AtomicLong();
+    private static final AtomicLong scopes = new AtomicLong();
+
+    private static final ThreadLocal<NodeScope> cached = new ThreadLocal<NodeScope>() {
+        @Override
+        protected NodeScope initialValue() {
+            return new NodeScope();
+        }
+    };
+
+    private final ArrayList<AccessibilityNodeInfo> nodes = new ArrayList<>();
+    private boolean open;
+
+    private NodeScope() {
+    }
+
+    /**
+     * 打开作用域，应配合 try-with-resources 使用；同一线程嵌套打开时使用新的作用域
+     */
+    public static NodeScope open() {
+        NodeScope scope = cached.get();
+        if (scope.open) {
+            scope = new NodeScope();
+        }
+        scope.open = true;
+        scopes.incrementAndGet();
+        return scope;
+    }
+
+    /**
+     * 登记节点，作用域关闭时回收
+     * @return 传入的节点，可以为 null
+     */
+    public AccessibilityNodeInfo add(AccessibilityNodeInfo node) {
+        if (node != null) {
+            obtained.incrementAndGet();
+            nodes.add(node);
+        }
+        return node;
+    }
+
+    /**
+     * 登记查找结果中的全部节点
+     */
+    public List<AccessibilityNodeInfo> addAll(List<AccessibilityNodeInfo> list) {
+        if (list != null) {
+            for (AccessibilityNodeInfo node : list) {
+                add(node);
+            }
+        }
+        return list;
+    }
+
+    public AccessibilityNodeInfo root(AccessibilityService service) {
+        return add(service.getRootInActiveWindow());
+    }
+
+    public AccessibilityNodeInfo child(AccessibilityNodeInfo node, int index) {
+        return add(node.getChild(index));
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).recycle();
+        }
+        recycled.addAndGet(nodes.size());
+        nodes.clear();
+        if (open) {
+            open = false;
+            scopes.decrementAndGet();
+        }
+    }
+
+    /**
+     * 登记由调用方长期持有的节点，之后必须经 recycle 回收
+     */
+    public static AccessibilityNodeInfo acquired(AccessibilityNodeInfo node) {
+        if (node != null) {
+            obtained.incrementAndGet();
+        }
+        return node;
+    }
+
+    /**
+     * 回收由 acquired 登记的节点
+     */
+    public static void recycle(AccessibilityNodeInfo node) {
+        if (node != null) {
+            node.recycle();
+            recycled.incrementAndGet();
+        }
+    }
+
+    /**
+     * 节点计数：累计取得、累计回收、未回收的节点数和打开中的作用域数
+     */
+    public static HashMap<String, Object> stats() {
+        long recycledCount = recycled.get();
+        long obtainedCount = obtained.get();
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("obtained", obtainedCount);
+        stats.put("recycled", recycledCount);
+        stats.put("live", obtainedCount - recycledCount);
+        stats.put("scopes", scopes.get());
+        return stats;
+    }
+}
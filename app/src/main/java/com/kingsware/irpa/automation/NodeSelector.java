@@ -0,0 +1,283 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 节点选择条件，类似 UiSelector
+ * 由请求中的条件表编译为按开销排序的判断列表：状态标志和类名、id 的相等比较在前，
+ * 包含和正则匹配在后，任一条件不满足立即返回。层级关系用 parent、ancestor、hasChild 嵌套条件表示，
+ * 只在节点自身条件满足后才向上或向下检查。
+ * 有多个候选时取与 bounds 提示交并比最大的，没有提示时按遍历顺序。
+ */
+public class NodeSelector {
+    private static final int COST_FLAG = 0;
+    private static final int COST_EQUALS = 1;
+    private static final int COST_SEARCH = 2;
+    private static final int COST_REGEX = 3;
+
+    interface Condition {
+        boolean test(NodeSnapshot.Entry entry, int index);
+    }
+
+    private final List<Condition> conditions = new ArrayList<>();
+    private final List<Integer> costs = new ArrayList<>();
+    private final StringBuilder description = new StringBuilder();
+    NodeSelector parent;
+    NodeSelector ancestor;
+    NodeSelector hasChild;
+    Rect bounds;
+
+    /**
+     * 编译条件表，不认识的键忽略
+     * 文本：text（contains 为 true 时按包含匹配，没有文本时比较描述）、textContains、textStartsWith、textMatches；
+     * 描述：desc、descContains、descMatches；资源 id：viewId、viewIdMatches；类名：className、classMatches；
+     * 包名 packageName；状态：clickable、longClickable、checkable、checked、enabled、focusable、focused、
+     * selected、scrollable、editable、visible；在兄弟节点中的位置 index；
+     * 层级：parent、ancestor、hasChild 为嵌套的条件表。正则要求完整匹配。
+     */
+    public static NodeSelector compile(Map<String, Object> spec) {
+        NodeSelector selector = new NodeSelector();
+        boolean contains = toBoolean(spec.get("contains"));
+        for (Map.Entry<String, Object> item : spec.entrySet()) {
+            Object value = item.getValue();
+            if (value == null) continue;
+            String str = value.toString();
+            switch (item.getKey()) {
+                case "text":
+                    selector.setText(str, contains);
+                    break;
+                case "textContains":
+                    selector.setText(str, true);
+                    break;
+                case "textStartsWith":
+                    selector.add("textStartsWith", str, COST_SEARCH, (e, i) -> e.text != null && e.text.startsWith(str));
+                    break;
+                case "textMatches": {
+                    Pattern pattern = Pattern.compile(str);
+                    selector.add("textMatches", str, COST_REGEX, (e, i) -> e.text != null && pattern.matcher(e.text).matches());
+                    break;
+                }
+                case "desc":
+                    selector.add("desc", str, COST_EQUALS, (e, i) -> str.equals(e.desc));
+                    break;
+                case "descContains":
+                    selector.add("descContains", str, COST_SEARCH, (e, i) -> e.desc != null && e.desc.contains(str));
+                    break;
+                case "descMatches": {
+                    Pattern pattern = Pattern.compile(str);
+                    selector.add("descMatches", str, COST_REGEX, (e, i) -> e.desc != null && pattern.matcher(e.desc).matches());
+                    break;
+                }
+                case "viewId":
+                    selector.setViewId(str);
+                    break;
+                case "viewIdMatches": {
+                    Pattern pattern = Pattern.compile(str);
+                    selector.add("viewIdMatches", str, COST_REGEX, (e, i) -> e.resId != null && pattern.matcher(e.resId).matches());
+                    break;
+                }
+                case "className":
+                    selector.setClassName(str);
+                    break;
+                case "classMatches": {
+                    Pattern pattern = Pattern.compile(str);
+                    selector.add("classMatches", str, COST_REGEX, (e, i) -> e.className != null && pattern.matcher(e.className).matches());
+                    break;
+                }
+                case "packageName":
+                    selector.add("packageName", str, COST_EQUALS, (e, i) -> e.node.getPackageName() != null
+                            && str.contentEquals(e.node.getPackageName()));
+                    break;
+                case "index": {
+                    int index = value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(str.trim());
+                    selector.add("index", str, COST_FLAG, (e, i) -> i == index);
+                    break;
+                }
+                case "parent":
+                    selector.parent = compile(toSpec(item.getKey(), value));
+                    selector.describe("parent", "{" + selector.parent + "}");
+                    break;
+                case "ancestor":
+                    selector.ancestor = compile(toSpec(item.getKey(), value));
+                    selector.describe("ancestor", "{" + selector.ancestor + "}");
+                    break;
+                case "hasChild":
+                    selector.hasChild = compile(toSpec(item.getKey(), value));
+                    selector.describe("hasChild", "{" + selector.hasChild + "}");
+                    break;
+                default:
+                    Condition flag = flag(item.getKey(), toBoolean(value));
+                    if (flag != null) selector.add(item.getKey(), str, COST_FLAG, flag);
+                    break;
+            }
+        }
+        return selector;
+    }
+
+    public NodeSelector setText(String text, boolean contains) {
+        if (text == null) return this;
+        if (contains) {
+            return add("textContains", text, COST_SEARCH, (e, i) -> {
+                String value = e.text != null ? e.text : e.desc;
+                return value != null && value.contains(text);
+            });
+        }
+        return add("text", text, COST_EQUALS, (e, i) -> text.equals(e.text != null ? e.text : e.desc));
+    }
+
+    /**
+     * 资源 id，可以只写 id 名，也可以带包名前缀 "pkg:id/name"
+     */
+    public NodeSelector setViewId(String viewId) {
+        if (viewId == null) return this;
+        String suffix = ":id/" + viewId;
+        return add("viewId", viewId, COST_EQUALS, (e, i) -> e.resId != null
+                && (e.resId.equals(viewId) || e.resId.endsWith(suffix)));
+    }
+
+    /**
+     * 类名，可以只写简单类名
+     */
+    public NodeSelector setClassName(String className) {
+        if (className == null) return this;
+        String suffix = "." + className;
+        return add("className", className, COST_EQUALS, (e, i) -> e.className != null
+                && (e.className.equals(className) || e.className.endsWith(suffix)));
+    }
+
+    public NodeSelector setBounds(Rect bounds) {
+        this.bounds = bounds;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return conditions.isEmpty() && parent == null && ancestor == null && hasChild == null;
+    }
+
+    boolean matches(NodeSnapshot.Entry entry, int index) {
+        for (int i = 0; i < conditions.size(); i++) {
+            if (!conditions.get(i).test(entry, index)) return false;
+        }
+        if (parent != null && (entry.parent == null || !parent.matches(entry.parent, indexOf(entry.parent)))) {
+            return false;
+        }
+        if (ancestor != null) {
+            boolean found = false;
+            for (NodeSnapshot.Entry p = entry.parent; p != null && !found; p = p.parent) {
+                found = ancestor.matches(p, indexOf(p));
+            }
+            if (!found) return false;
+        }
+        if (hasChild != null) {
+            boolean found = false;
+            for (int i = 0; i < entry.children.size() && !found; i++) {
+                found = hasChild.matches(entry.children.get(i), i);
+            }
+            return found;
+        }
+        return true;
+    }
+
+    // 按开销插入，同等开销保持添加顺序
+    private NodeSelector add(String key, String value, int cost, Condition condition) {
+        int pos = costs.size();
+        while (pos > 0 && costs.get(pos - 1) > cost) pos--;
+        conditions.add(pos, condition);
+        costs.add(pos, cost);
+        return describe(key, value);
+    }
+
+    private NodeSelector describe(String key, String value) {
+        if (description.length() > 0) description.append(", ");
+        description.append(key).append('=').append(value);
+        return this;
+    }
+
+    private static Condition flag(String name, boolean expected) {
+        switch (name) {
+            case "clickable": return (e, i) -> e.node.isClickable() == expected;
+            case "longClickable": return (e, i) -> e.node.isLongClickable() == expected;
+            case "checkable": return (e, i) -> e.node.isCheckable() == expected;
+            case "checked": return (e, i) -> e.node.isChecked() == expected;
+            case "enabled": return (e, i) -> e.node.isEnabled() == expected;
+            case "focusable": return (e, i) -> e.node.isFocusable() == expected;
+            case "focused": return (e, i) -> e.node.isFocused() == expected;
+            case "selected": return (e, i) -> e.node.isSelected() == expected;
+            case "scrollable": return (e, i) -> e.node.isScrollable() == expected;
+            case "editable": return (e, i) -> e.node.isEditable() == expected;
+            case "visible": return (e, i) -> e.node.isVisibleToUser() == expected;
+            default: return null;
+        }
+    }
+
+    private static int indexOf(NodeSnapshot.Entry entry) {
+        return entry.parent != null ? entry.parent.children.indexOf(entry) : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> toSpec(String key, Object value) {
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("invalid " + key + " selector: " + value);
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private static boolean toBoolean(Object value) {
+        if (value == null) return false;
+        return value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString().trim());
+    }
+
+    // 状态名，下标为 flagMask 中的位
+    private static final String[] FLAG_NAMES = {
+            "clickable", "longClickable", "checkable", "checked", "enabled", "focusable",
+            "focused", "selected", "scrollable", "editable", "visible"
+    };
+
+    /**
+     * 节点状态的位掩码，位序同 FLAG_NAMES
+     */
+    static int flagMask(AccessibilityNodeInfo node) {
+        int mask = 0;
+        if (node.isClickable()) mask |= 1;
+        if (node.isLongClickable()) mask |= 1 << 1;
+        if (node.isCheckable()) mask |= 1 << 2;
+        if (node.isChecked()) mask |= 1 << 3;
+        if (node.isEnabled()) mask |= 1 << 4;
+        if (node.isFocusable()) mask |= 1 << 5;
+        if (node.isFocused()) mask |= 1 << 6;
+        if (node.isSelected()) mask |= 1 << 7;
+        if (node.isScrollable()) mask |= 1 << 8;
+        if (node.isEditable()) mask |= 1 << 9;
+        if (node.isVisibleToUser()) mask |= 1 << 10;
+        return mask;
+    }
+
+    /**
+     * 掩码中为 true 的状态名，与 compile 中的状态条件同名
+     */
+    static List<String> flags(int mask) {
+        List<String> flags = new ArrayList<>();
+        for (int i = 0; i < FLAG_NAMES.length; i++) {
+            if ((mask & (1 << i)) != 0) flags.add(FLAG_NAMES[i]);
+        }
+        return flags;
+    }
+
+    /**
+     * 节点为 true 的状态名，与 compile 中的状态条件同名
+     */
+    static List<String> flags(AccessibilityNodeInfo node) {
+        return flags(flagMask(node));
+    }
+
+    @Override
+    public String toString() {
+        return description.toString();
+    }
+}
@@ -0,0 +1,760 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 活动窗口节点树的缓存快照
+ * 节点边界按均匀网格建立空间索引，按矩形查找时只计算落在相关网格内的候选节点；
+ * 内容变化时只标记对应节点或子树，下次查询前再增量刷新，并按版本号记录变更，
+ * 供控制端拉取某版本之后的差异。
+ * 主线程的事件回调只把失效通知放入无锁队列（post、postClear），不等待快照锁，
+ * 由下次查询在锁内统一处理，避免主线程阻塞在其他线程的重建上。
+ */
+public class NodeSnapshot {
+    private static final String TAG = "NodeSnapshot";
+    private static final int GRID_COLS = 8;
+    private static final int GRID_ROWS = 16;
+    private static final int MAX_CHANGES = 8192;
+    // 待处理的失效通知超过此数时整体失效
+    private static final int MAX_PENDING = 512;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int DIRTY_NONE = 0;
+    private static final int DIRTY_SELF = 1;
+    private static final int DIRTY_SUBTREE = 2;
+
+    static class Entry {
+        final int id;
+        AccessibilityNodeInfo node;
+        Entry parent;
+        final List<Entry> children = new ArrayList<>();
+        final Rect bounds = new Rect();
+        String className;
+        String text;
+        String desc;
+        String resId;
+        // 状态位，见 NodeSelector.flagMask
+        int flags;
+        // 覆盖的网格范围，未入网格时 cellLeft 为 -1
+        int cellLeft = -1;
+        int cellTop;
+        int cellRight;
+        int cellBottom;
+        int stamp;
+        int dirty;
+        boolean released;
+
+        Entry(int id) {
+            this.id = id;
+        }
+    }
+
+    private static class Pending {
+        final AccessibilityNodeInfo node;
+        final boolean subtree;
+
+        Pending(AccessibilityNodeInfo node, boolean subtree) {
+            this.node = node;
+            this.subtree = subtree;
+        }
+    }
+
+    private static class Change {
+        final long version;
+        final int id;
+
+        Change(long version, int id) {
+            this.version = version;
+            this.id = id;
+        }
+    }
+
+    private final int cellWidth;
+    private final int cellHeight;
+    private final List<Entry>[] cells;
+    private final boolean[] staleCells;
+    private final Map<AccessibilityNodeInfo, Entry> entries = new HashMap<>();
+    private final Map<Integer, Entry> entriesById = new HashMap<>();
+    private final List<Entry> dirtyEntries = new ArrayList<>();
+    private final List<Change> changes = new ArrayList<>();
+    private final Rect tmpBounds = new Rect();
+    // 查询时复用的遍历栈
+    private final List<Entry> matchStack = new ArrayList<>();
+    private final List<Integer> matchIndex = new ArrayList<>();
+    private Entry root;
+    private int queryStamp;
+    private int nextId;
+    private long version;
+    // 早于该版本的差异已无法回答，只能返回全量
+    private long changeFloor;
+    private boolean changed;
+    // 未处理的失效通知
+    private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // 整体失效请求的计数，与已处理的计数不同时说明有未处理的请求
+    private final AtomicInteger clearRequests = new AtomicInteger();
+    private volatile int clearsApplied;
+    // entries 的大小，在锁内更新
+    private volatile int entryCount;
+    // 结构哈希按版本缓存
+    private long structureVersion = -1;
+    private long structureHash;
+
+    @SuppressWarnings("unchecked")
+    public NodeSnapshot(int screenWidth, int screenHeight) {
+        cellWidth = Math.max(1, (screenWidth + GRID_COLS - 1) / GRID_COLS);
+        cellHeight = Math.max(1, (screenHeight + GRID_ROWS - 1) / GRID_ROWS);
+        cells = new List[GRID_COLS * GRID_ROWS];
+        staleCells = new boolean[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = new ArrayList<>();
+        }
+    }
+
+    public synchronized boolean isValid() {
+        applyPending();
+        return root != null;
+    }
+
+    /**
+     * 快照持有的节点数，不加锁，供心跳等不能等待的地方读取
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    public synchronized long getVersion() {
+        refreshDirty();
+        return version;
+    }
+
+    /**
+     * 根节点所属的包名，快照为空时返回 null
+     */
+    public synchronized String getPackageName() {
+        refreshDirty();
+        if (root == null) return null;
+        CharSequence pkg = root.node.getPackageName();
+        return pkg != null ? pkg.toString() : null;
+    }
+
+    /**
+     * 以新的根节点重建整个快照，快照接管 rootNode 的回收，rootNode 应已经 NodeScope.acquired 登记
+     */
+    public synchronized void rebuild(AccessibilityNodeInfo rootNode) {
+        // 重建开始后的整体失效请求仍然有效
+        int requests = clearRequests.get();
+        clear();
+        clearsApplied = requests;
+        version++;
+        changeFloor = version;
+        if (rootNode != null) {
+            root = build(rootNode, null);
+            Log.d(TAG, "rebuild: " + entries.size() + " nodes, version " + version);
+        }
+    }
+
+    public synchronized void clear() {
+        Pending item;
+        while ((item = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            NodeScope.recycle(item.node);
+        }
+        for (Entry entry : entries.values()) {
+            NodeScope.recycle(entry.node);
+        }
+        entries.clear();
+        entryCount = 0;
+        entriesById.clear();
+        dirtyEntries.clear();
+        changes.clear();
+        for (List<Entry> cell : cells) {
+            cell.clear();
+        }
+        root = null;
+    }
+
+    /**
+     * 通知 source 对应的节点失效，不等待快照锁，下次查询时处理；快照接管 source 的回收
+     * @param subtree true 时重新遍历整棵子树，否则只刷新节点自身属性
+     */
+    public void post(AccessibilityNodeInfo source, boolean subtree) {
+        if (clearRequests.get() != clearsApplied) {
+            // 快照将整体失效，不再需要这个节点
+            NodeScope.recycle(source);
+            return;
+        }
+        pending.add(new Pending(source, subtree));
+        if (pendingCount.incrementAndGet() > MAX_PENDING) {
+            postClear();
+        }
+    }
+
+    /**
+     * 通知快照整体失效，不等待快照锁，下次查询时清空并重建
+     */
+    public void postClear() {
+        clearRequests.incrementAndGet();
+    }
+
+    // 处理失效通知，调用方持有锁
+    private void applyPending() {
+        int requests = clearRequests.get();
+        if (requests != clearsApplied) {
+            clear();
+            clearsApplied = requests;
+            return;
+        }
+        Pending item;
+        while ((item = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            if (!invalidate(item.node, item.subtree)) {
+                // 找不到变化节点时整体失效，下次查找重建
+                clear();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 标记 source 对应的节点失效，快照接管 source 的回收
+     * @return false 表示快照中找不到该节点，调用方应整体失效
+     */
+    private boolean invalidate(AccessibilityNodeInfo source, boolean subtree) {
+        if (root == null) {
+            NodeScope.recycle(source);
+            return true;
+        }
+        if (source.getWindowId() != root.node.getWindowId()) {
+            // 其他窗口的变化不影响当前快照
+            NodeScope.recycle(source);
+            return true;
+        }
+        Entry entry = entries.get(source);
+        if (entry == null) {
+            NodeScope.recycle(source);
+            return false;
+        }
+        replaceNode(entry, source);
+        if (entry.dirty == DIRTY_NONE) {
+            dirtyEntries.add(entry);
+        }
+        entry.dirty = Math.max(entry.dirty, subtree ? DIRTY_SUBTREE : DIRTY_SELF);
+        return true;
+    }
+
+    /**
+     * 查找与 rect 交并比最大的节点
+     * @return 节点副本，由调用方登记到 NodeScope；没有相交节点时返回 null
+     */
+    public synchronized AccessibilityNodeInfo findBest(Rect rect) {
+        refreshDirty();
+        if (root == null) return null;
+
+        int stamp = ++queryStamp;
+        Entry target = null;
+        float maxIoU = 0.0f;
+        int colStart = clampCol(rect.left / cellWidth);
+        int colEnd = clampCol((rect.right - 1) / cellWidth);
+        int rowStart = clampRow(rect.top / cellHeight);
+        int rowEnd = clampRow((rect.bottom - 1) / cellHeight);
+        for (int row = rowStart; row <= rowEnd; row++) {
+            for (int col = colStart; col <= colEnd; col++) {
+                for (Entry entry : cells[row * GRID_COLS + col]) {
+                    if (entry.stamp == stamp) continue;
+                    entry.stamp = stamp;
+                    float iou = AutoAccessibilityService.calculateIoU(entry.bounds, rect);
+                    if (iou > maxIoU) {
+                        maxIoU = iou;
+                        target = entry;
+                    }
+                }
+            }
+        }
+        return target != null ? AccessibilityNodeInfo.obtain(target.node) : null;
+    }
+
+    /**
+     * 查找满足条件的可见节点，有 bounds 提示时取交并比最大的
+     * @param out 找到时写入节点边界
+     * @return 是否找到
+     */
+    public synchronized boolean find(NodeSelector selector, Rect out) {
+        refreshDirty();
+        List<Entry> found = match(selector, 1);
+        if (found.isEmpty()) return false;
+        out.set(found.get(0).bounds);
+        return true;
+    }
+
+    /**
+     * 查找满足条件的可见节点，最多 limit 个；有 bounds 提示时按交并比从大到小排列
+     * @return 节点的简要描述 {id, class, text, desc, resId, bounds, flags}
+     */
+    public synchronized List<HashMap<String, Object>> query(NodeSelector selector, int limit) {
+        refreshDirty();
+        List<Entry> found = match(selector, limit);
+        List<HashMap<String, Object>> result = new ArrayList<>(found.size());
+        for (Entry entry : found) {
+            HashMap<String, Object> node = new HashMap<>();
+            node.put("id", entry.id);
+            node.put("class", entry.className);
+            if (entry.text != null) node.put("text", entry.text);
+            if (entry.desc != null) node.put("desc", entry.desc);
+            if (entry.resId != null) node.put("resId", entry.resId);
+            Rect b = entry.bounds;
+            node.put("bounds", Arrays.asList(b.left, b.top, b.right, b.bottom));
+            node.put("flags", NodeSelector.flags(entry.node));
+            result.add(node);
+        }
+        return result;
+    }
+
+    /**
+     * 节点树结构的 SimHash：以 深度、类名、资源 id 的组合为特征（去重，不含文本），
+     * 列表条目数和文字内容变化不影响结果，布局相近的界面只相差少数位，可按汉明距离比较
+     * @return 没有节点时返回 0
+     */
+    public synchronized long structureHash() {
+        refreshDirty();
+        if (root == null) return 0;
+        if (structureVersion == version) return structureHash;
+        HashSet<Long> features = new HashSet<>();
+        matchStack.clear();
+        matchIndex.clear();
+        matchStack.add(root);
+        matchIndex.add(0);
+        while (!matchStack.isEmpty()) {
+            Entry entry = matchStack.remove(matchStack.size() - 1);
+            int depth = matchIndex.remove(matchIndex.size() - 1);
+            long h = FNV_OFFSET;
+            h = (h ^ depth) * FNV_PRIME;
+            h = fnv(h, entry.className);
+            h = fnv(h, entry.resId);
+            features.add(h);
+            for (int i = entry.children.size() - 1; i >= 0; i--) {
+                matchStack.add(entry.children.get(i));
+                matchIndex.add(depth + 1);
+            }
+        }
+        int[] votes = new int[64];
+        for (long feature : features) {
+            for (int bit = 0; bit < 64; bit++) {
+                votes[bit] += ((feature >>> bit) & 1) != 0 ? 1 : -1;
+            }
+        }
+        long hash = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (votes[bit] > 0) hash |= 1L << bit;
+        }
+        structureVersion = version;
+        structureHash = hash;
+        return hash;
+    }
+
+    private static long fnv(long h, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                h = (h ^ value.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // 分隔相邻字段
+        return (h ^ 0xff) * FNV_PRIME;
+    }
+
+    /**
+     * 从 rootId 对应的节点（-1 为根节点）开始先序导出子树
+     * @return 起点不存在时返回 false
+     */
+    public synchronized boolean dump(TreeDump dump, int rootId) throws IOException {
+        refreshDirty();
+        Entry start = rootId < 0 ? root : entriesById.get(rootId);
+        if (start == null) return false;
+        dump.version = version;
+        // 借用查询的遍历栈，matchIndex 记录深度
+        matchStack.clear();
+        matchIndex.clear();
+        matchStack.add(start);
+        matchIndex.add(0);
+        try {
+            while (!matchStack.isEmpty() && !dump.isFull()) {
+                Entry entry = matchStack.remove(matchStack.size() - 1);
+                int depth = matchIndex.remove(matchIndex.size() - 1);
+                if (!dump.accept(entry, depth)) continue;
+                dump.write(entry, entry == start || entry.parent == null ? -1 : entry.parent.id, depth);
+                for (int i = entry.children.size() - 1; i >= 0; i--) {
+                    matchStack.add(entry.children.get(i));
+                    matchIndex.add(depth + 1);
+                }
+            }
+            dump.finish();
+        } finally {
+            matchStack.clear();
+        }
+        return true;
+    }
+
+    /**
+     * 先序遍历一次，没有位置提示时找够 limit 个即停止
+     */
+    private List<Entry> match(NodeSelector selector, int limit) {
+        List<Entry> found = new ArrayList<>();
+        if (root == null || limit <= 0) return found;
+        boolean ranked = selector.bounds != null;
+        matchStack.clear();
+        matchIndex.clear();
+        matchStack.add(root);
+        matchIndex.add(0);
+        while (!matchStack.isEmpty()) {
+            Entry entry = matchStack.remove(matchStack.size() - 1);
+            int index = matchIndex.remove(matchIndex.size() - 1);
+            for (int i = entry.children.size() - 1; i >= 0; i--) {
+                matchStack.add(entry.children.get(i));
+                matchIndex.add(i);
+            }
+            // 滚出屏幕的节点边界为空
+            if (entry.bounds.isEmpty() || !selector.matches(entry, index)) continue;
+            found.add(entry);
+            if (!ranked && found.size() >= limit) break;
+        }
+        matchStack.clear();
+        if (ranked) {
+            Rect hint = selector.bounds;
+            found.sort((a, b) -> Float.compare(AutoAccessibilityService.calculateIoU(b.bounds, hint),
+                    AutoAccessibilityService.calculateIoU(a.bounds, hint)));
+            if (found.size() > limit) {
+                found = new ArrayList<>(found.subList(0, limit));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 查找可滚动的容器：优先包含 (x, y) 的最小容器，否则取面积最大的
+     * @return 节点副本，由调用方登记到 NodeScope；没有可滚动节点时返回 null
+     */
+    public synchronized AccessibilityNodeInfo findScrollable(int x, int y, Rect out) {
+        refreshDirty();
+        Entry inner = null;
+        Entry largest = null;
+        for (Entry entry : entries.values()) {
+            if (entry.bounds.isEmpty() || !entry.node.isScrollable()) continue;
+            long area = (long) entry.bounds.width() * entry.bounds.height();
+            if (entry.bounds.contains(x, y)
+                    && (inner == null || area < (long) inner.bounds.width() * inner.bounds.height())) {
+                inner = entry;
+            }
+            if (largest == null || area > (long) largest.bounds.width() * largest.bounds.height()) {
+                largest = entry;
+            }
+        }
+        Entry target = inner != null ? inner : largest;
+        if (target == null) return null;
+        out.set(target.bounds);
+        return AccessibilityNodeInfo.obtain(target.node);
+    }
+
+    /**
+     * 返回 since 版本之后的变更：被删除节点的 id 列表及新增或修改节点的描述；
+     * since 早于可追溯的版本时返回全量节点并置 reset
+     */
+    public synchronized HashMap<String, Object> diff(long since) {
+        refreshDirty();
+        HashMap<String, Object> result = new HashMap<>();
+        ArrayList<Integer> removed = new ArrayList<>();
+        ArrayList<Map<String, Object>> nodes = new ArrayList<>();
+        boolean reset = since < changeFloor || since > version;
+        if (reset) {
+            for (Entry entry : entries.values()) {
+                nodes.add(describe(entry));
+            }
+        } else {
+            Set<Integer> touched = new LinkedHashSet<>();
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                Change change = changes.get(i);
+                if (change.version <= since) break;
+                touched.add(change.id);
+            }
+            for (Integer id : touched) {
+                Entry entry = entriesById.get(id);
+                if (entry != null) {
+                    nodes.add(describe(entry));
+                } else {
+                    removed.add(id);
+                }
+            }
+        }
+        result.put("version", version);
+        result.put("since", since);
+        result.put("reset", reset);
+        result.put("root", root != null ? root.id : -1);
+        result.put("removed", removed);
+        result.put("nodes", nodes);
+        return result;
+    }
+
+    private void refreshDirty() {
+        applyPending();
+        if (dirtyEntries.isEmpty()) return;
+        changed = false;
+        for (Entry entry : dirtyEntries) {
+            // 祖先子树同样失效时，由祖先统一刷新
+            if (entry.dirty != DIRTY_NONE && !entry.released && !hasDirtyAncestor(entry)) {
+                refresh(entry, entry.dirty == DIRTY_SUBTREE);
+            }
+        }
+        for (Entry entry : dirtyEntries) {
+            entry.dirty = DIRTY_NONE;
+        }
+        dirtyEntries.clear();
+        // 被释放的节点批量移出网格
+        for (int i = 0; i < cells.length; i++) {
+            if (staleCells[i]) {
+                cells[i].removeIf(entry -> entry.released);
+                staleCells[i] = false;
+            }
+        }
+        if (changed) {
+            version++;
+            trimChanges();
+        }
+    }
+
+    private boolean hasDirtyAncestor(Entry entry) {
+        for (Entry p = entry.parent; p != null; p = p.parent) {
+            if (p.dirty == DIRTY_SUBTREE) return true;
+        }
+        return false;
+    }
+
+    private void refresh(Entry entry, boolean subtree) {
+        boolean modified = readAttributes(entry);
+        if (subtree) {
+            modified |= reconcileChildren(entry);
+        }
+        if (modified) {
+            touch(entry);
+        }
+    }
+
+    /**
+     * 按节点身份将新的子节点与原有条目对应，保留未变化节点的 id
+     * @return 子节点列表是否发生变化
+     */
+    private boolean reconcileChildren(Entry entry) {
+        List<Entry> previous = new ArrayList<>(entry.children);
+        Set<Entry> kept = new HashSet<>();
+        entry.children.clear();
+        for (int i = 0; i < entry.node.getChildCount(); i++) {
+            AccessibilityNodeInfo child = NodeScope.acquired(entry.node.getChild(i));
+            if (child == null) continue;
+            Entry match = entries.get(child);
+            if (match != null && !kept.contains(match) && adopt(match, entry)) {
+                kept.add(match);
+                replaceNode(match, child);
+                refresh(match, true);
+                entry.children.add(match);
+            } else {
+                entry.children.add(build(child, entry));
+            }
+        }
+        boolean modified = !previous.equals(entry.children);
+        for (Entry old : previous) {
+            // 已移到其他父节点下的保留
+            if (!kept.contains(old) && old.parent == entry) {
+                release(old);
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * 已在快照中的节点出现在 parent 下：换了父节点时从原父节点移出，沿用原条目和 id
+     * @return parent 是该节点自身或其子孙，不能移动时返回 false
+     */
+    private boolean adopt(Entry match, Entry parent) {
+        if (match.released) return false;
+        if (match.parent == parent) return true;
+        for (Entry p = parent; p != null; p = p.parent) {
+            if (p == match) return false;
+        }
+        Entry old = match.parent;
+        if (old != null) {
+            old.children.remove(match);
+            touch(old);
+        }
+        match.parent = parent;
+        touch(match);
+        return true;
+    }
+
+    private boolean readAttributes(Entry entry) {
+        AccessibilityNodeInfo node = entry.node;
+        String className = toStr(node.getClassName());
+        String text = toStr(node.getText());
+        String desc = toStr(node.getContentDescription());
+        String resId = node.getViewIdResourceName();
+        int flags = NodeSelector.flagMask(node);
+        node.getBoundsInScreen(tmpBounds);
+        boolean modified = !Objects.equals(className, entry.className)
+                || !Objects.equals(text, entry.text)
+                || !Objects.equals(desc, entry.desc)
+                || !Objects.equals(resId, entry.resId)
+                || flags != entry.flags;
+        entry.className = className;
+        entry.text = text;
+        entry.desc = desc;
+        entry.resId = resId;
+        entry.flags = flags;
+        if (!tmpBounds.equals(entry.bounds)) {
+            unindex(entry);
+            entry.bounds.set(tmpBounds);
+            index(entry);
+            modified = true;
+        }
+        return modified;
+    }
+
+    private Entry build(AccessibilityNodeInfo node, Entry parent) {
+        Entry entry = new Entry(nextId++);
+        entry.node = node;
+        entry.parent = parent;
+        entries.put(node, entry);
+        entryCount = entries.size();
+        entriesById.put(entry.id, entry);
+        readAttributes(entry);
+        for (int i = 0; i < node.getChildCount(); i++) {
+            AccessibilityNodeInfo child = NodeScope.acquired(node.getChild(i));
+            if (child == null) continue;
+            // 从别处移来的节点沿用原条目，避免同一节点留下两个条目
+            Entry match = entries.get(child);
+            if (match != null && adopt(match, entry)) {
+                replaceNode(match, child);
+                refresh(match, true);
+                entry.children.add(match);
+            } else {
+                entry.children.add(build(child, entry));
+            }
+        }
+        touch(entry);
+        return entry;
+    }
+
+    private void replaceNode(Entry entry, AccessibilityNodeInfo node) {
+        entries.remove(entry.node);
+        NodeScope.recycle(entry.node);
+        entry.node = node;
+        entries.put(node, entry);
+    }
+
+    private void release(Entry entry) {
+        if (entry.released) return;
+        for (Entry child : entry.children) {
+            release(child);
+        }
+        if (entry.cellLeft >= 0) {
+            for (int row = entry.cellTop; row <= entry.cellBottom; row++) {
+                for (int col = entry.cellLeft; col <= entry.cellRight; col++) {
+                    staleCells[row * GRID_COLS + col] = true;
+                }
+            }
+        }
+        // 同一节点可能已由新的条目登记，只移除自己的映射
+        if (entries.get(entry.node) == entry) {
+            entries.remove(entry.node);
+        }
+        entryCount = entries.size();
+        entriesById.remove(entry.id);
+        NodeScope.recycle(entry.node);
+        entry.released = true;
+        touch(entry);
+    }
+
+    private void touch(Entry entry) {
+        // 整体重建时控制端只能取全量，无需记录
+        if (root == null) return;
+        changes.add(new Change(version + 1, entry.id));
+        changed = true;
+    }
+
+    private void trimChanges() {
+        if (changes.size() <= MAX_CHANGES) return;
+        List<Change> dropped = changes.subList(0, changes.size() - MAX_CHANGES / 2);
+        changeFloor = dropped.get(dropped.size() - 1).version;
+        dropped.clear();
+    }
+
+    private HashMap<String, Object> describe(Entry entry) {
+        HashMap<String, Object> node = new HashMap<>();
+        node.put("id", entry.id);
+        node.put("parent", entry.parent != null ? entry.parent.id : -1);
+        node.put("class", entry.className);
+        if (entry.text != null) node.put("text", entry.text);
+        if (entry.desc != null) node.put("desc", entry.desc);
+        if (entry.resId != null) node.put("resId", entry.resId);
+        Rect b = entry.bounds;
+        node.put("bounds", Arrays.asList(b.left, b.top, b.right, b.bottom));
+        node.put("flags", NodeSelector.flags(entry.flags));
+        ArrayList<Integer> children = new ArrayList<>(entry.children.size());
+        for (Entry child : entry.children) {
+            children.add(child.id);
+        }
+        node.put("children", children);
+        return node;
+    }
+
+    private void index(Entry entry) {
+        Rect b = entry.bounds;
+        if (b.right <= b.left || b.bottom <= b.top) {
+            entry.cellLeft = -1;
+            return;
+        }
+        entry.cellLeft = clampCol(b.left / cellWidth);
+        entry.cellRight = clampCol((b.right - 1) / cellWidth);
+        entry.cellTop = clampRow(b.top / cellHeight);
+        entry.cellBottom = clampRow((b.bottom - 1) / cellHeight);
+        for (int row = entry.cellTop; row <= entry.cellBottom; row++) {
+            for (int col = entry.cellLeft; col <= entry.cellRight; col++) {
+                cells[row * GRID_COLS + col].add(entry);
+            }
+        }
+    }
+
+    private void unindex(Entry entry) {
+        if (entry.cellLeft < 0) return;
+        for (int row = entry.cellTop; row <= entry.cellBottom; row++) {
+            for (int col = entry.cellLeft; col <= entry.cellRight; col++) {
+                cells[row * GRID_COLS + col].remove(entry);
+            }
+        }
+        entry.cellLeft = -1;
+    }
+
+    private static String toStr(CharSequence value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static int clampCol(int col) {
+        return Math.max(0, Math.min(GRID_COLS - 1, col));
+    }
+
+    private static int clampRow(int row) {
+        return Math.max(0, Math.min(GRID_ROWS - 1, row));
+    }
+}
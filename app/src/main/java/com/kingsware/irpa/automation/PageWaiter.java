@@ -0,0 +1,76 @@
+package com.kingsware.irpa.automation;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 等待界面稳定的条件
+ * 界面在 quiet 时间内没有变化，且指定的节点 id、文本或前台包名条件全部满足时完成；
+ * 超过 timeout 仍未满足时以超时结束。结果通过回调推送，也可以阻塞等待。
+ */
+public class PageWaiter {
+    public static final long DEFAULT_QUIET = 200;
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    public interface Callback {
+        void onFinished(HashMap<String, Object> result);
+    }
+
+    final long quiet;
+    final long timeout;
+    String viewId;
+    String text;
+    String packageName;
+    private Callback callback;
+
+    long startTime;
+    Runnable checkTask;
+    Runnable timeoutTask;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private HashMap<String, Object> result;
+
+    public PageWaiter(long quiet, long timeout) {
+        this.quiet = quiet;
+        this.timeout = timeout;
+    }
+
+    public PageWaiter setViewId(String viewId) {
+        this.viewId = viewId;
+        return this;
+    }
+
+    public PageWaiter setText(String text) {
+        this.text = text;
+        return this;
+    }
+
+    public PageWaiter setPackageName(String packageName) {
+        this.packageName = packageName;
+        return this;
+    }
+
+    public PageWaiter setCallback(Callback callback) {
+        this.callback = callback;
+        return this;
+    }
+
+    boolean hasTarget() {
+        return viewId != null || text != null || packageName != null;
+    }
+
+    void finish(HashMap<String, Object> result) {
+        this.result = result;
+        done.countDown();
+        if (callback != null) {
+            callback.onFinished(result);
+        }
+    }
+
+    /**
+     * 阻塞等待结果，不能在主线程调用
+     */
+    public HashMap<String, Object> await() throws InterruptedException {
+        done.await();
+        return result;
+    }
+}
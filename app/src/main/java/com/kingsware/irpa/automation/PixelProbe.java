@@ -0,0 +1,127 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Rect;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 采样一个像素或一个小区域的颜色
+ * 直接读取 RGBA 图像平面，区域取各通道平均值；带期望颜色时按各通道最大差值与容差比较。
+ */
+public class PixelProbe {
+    public static final int DEFAULT_TOLERANCE = 16;
+
+    private final int left;
+    private final int top;
+    private final int right;
+    private final int bottom;
+    private int[] expected;
+    private int tolerance = DEFAULT_TOLERANCE;
+
+    private final int[] rgba = new int[4];
+    private boolean sampled;
+
+    private PixelProbe(int left, int top, int right, int bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public static PixelProbe point(int x, int y) {
+        return new PixelProbe(x, y, x + 1, y + 1);
+    }
+
+    public static PixelProbe rect(Rect rect) {
+        return new PixelProbe(rect.left, rect.top, rect.right, rect.bottom);
+    }
+
+    /**
+     * 期望的颜色 [r,g,b] 或 [r,g,b,a]，只有 rgb 时不比较透明度
+     */
+    public PixelProbe expect(int[] expected, int tolerance) {
+        this.expected = expected;
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * 解析颜色："#RRGGBB" 或 "#RRGGBBAA"
+     */
+    public static int[] parseColor(String color) {
+        String hex = color.startsWith("#") ? color.substring(1) : color;
+        if (hex.length() != 6 && hex.length() != 8) {
+            throw new IllegalArgumentException("invalid color: " + color);
+        }
+        int[] rgba = new int[hex.length() / 2];
+        for (int i = 0; i < rgba.length; i++) {
+            rgba[i] = Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return rgba;
+    }
+
+    /**
+     * 从图像平面采样，区域超出图像的部分忽略
+     */
+    void sample(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int x0 = Math.max(0, left);
+        int y0 = Math.max(0, top);
+        int x1 = Math.min(image.getWidth(), right);
+        int y1 = Math.min(image.getHeight(), bottom);
+        Arrays.fill(rgba, 0);
+        sampled = x1 > x0 && y1 > y0;
+        if (!sampled) return;
+        long r = 0, g = 0, b = 0, a = 0;
+        for (int y = y0; y < y1; y++) {
+            int pos = y * rowStride + x0 * pixelStride;
+            for (int x = x0; x < x1; x++, pos += pixelStride) {
+                r += buffer.get(pos) & 0xff;
+                g += buffer.get(pos + 1) & 0xff;
+                b += buffer.get(pos + 2) & 0xff;
+                a += buffer.get(pos + 3) & 0xff;
+            }
+        }
+        int n = (x1 - x0) * (y1 - y0);
+        rgba[0] = (int) ((r + n / 2) / n);
+        rgba[1] = (int) ((g + n / 2) / n);
+        rgba[2] = (int) ((b + n / 2) / n);
+        rgba[3] = (int) ((a + n / 2) / n);
+    }
+
+    /**
+     * 与期望颜色各通道的最大差值，没有期望颜色时为 -1
+     */
+    int distance() {
+        if (expected == null) return -1;
+        int distance = 0;
+        for (int i = 0; i < expected.length && i < 4; i++) {
+            distance = Math.max(distance, Math.abs(expected[i] - rgba[i]));
+        }
+        return distance;
+    }
+
+    /**
+     * 没有期望颜色时只要采样成功即为匹配
+     */
+    public boolean matches() {
+        return sampled && (expected == null || distance() <= tolerance);
+    }
+
+    /**
+     * 采样结果 {rgba, match}，带期望颜色时附带 distance；区域在屏幕外时 rgba 为 null
+     */
+    public HashMap<String, Object> result() {
+        HashMap<String, Object> result = new HashMap<>();
+        result.put("rgba", sampled ? Arrays.asList(rgba[0], rgba[1], rgba[2], rgba[3]) : null);
+        if (expected != null && sampled) result.put("distance", distance());
+        result.put("match", matches());
+        return result;
+    }
+}
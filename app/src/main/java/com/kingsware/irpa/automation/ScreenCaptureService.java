@@ -17,17 +17,23 @@ import android.media.ImageReader;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.DisplayMetrics;
 import android.view.Surface;
 
+import java.lang.ref.WeakReference;
+import java.util.List;
+
 
-import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
 
 public class ScreenCaptureService extends Service {
     private static final String TAG = "ScreenCaptureService";
+    public static final int DEFAULT_QUALITY = 70;
 
     //需要建立Notify通道，不然权限设置出错
     private static final int NOTIFICATION_ID = 123;
@@ -36,6 +42,25 @@ public class ScreenCaptureService extends Service {
     private MediaProjection mediaProjection;
     private ImageReader imageReader;
     private VirtualDisplay virtualDisplay;
+    private HandlerThread captureThread;
+
+    // 保留最近一帧，屏幕无变化时不会有新帧到达
+    private final Object imageLock = new Object();
+    private Image latestImage;
+    private volatile FrameStreamer frameStreamer;
+    private FramePool framePool;
+    // 最近一次截图（转换和压缩）的耗时，毫秒
+    private volatile long lastCaptureLatency = -1;
+    // 最近一帧的灰度图，同一帧的多次查询复用；弱引用，没有调用方使用时即可回收
+    private WeakReference<GrayImage> grayFrame;
+    private long grayTimestamp;
+    private int grayFactor;
+    // 最近一帧的差值哈希
+    private long frameHash;
+    private long hashTimestamp = -1;
+
+    // grayFrame 的最小降采样倍数，整帧灰度图不超过原图像素数的 1/4
+    public static final int MIN_GRAY_FACTOR = 2;
 
     private final IBinder binder = new ScreenCaptureService.LocalBinder();
 
@@ -90,13 +115,17 @@ public class ScreenCaptureService extends Service {
 
     private void setupVirtualDisplay() {// 初始化屏幕参数
         DisplayMetrics metrics = getResources().getDisplayMetrics();
+        framePool = new FramePool(metrics.widthPixels, metrics.heightPixels);
 
         imageReader = ImageReader.newInstance(
                 metrics.widthPixels,
                 metrics.heightPixels,
                 PixelFormat.RGBA_8888,
-                2
+                3
         );
+        captureThread = new HandlerThread("ScreenCapture", Process.THREAD_PRIORITY_DISPLAY);
+        captureThread.start();
+        imageReader.setOnImageAvailableListener(this::onImageAvailable, new Handler(captureThread.getLooper()));
 
         virtualDisplay = mediaProjection.createVirtualDisplay(
                 "ScreenCapture",
@@ -110,51 +139,204 @@ public class ScreenCaptureService extends Service {
         );
     }
 
+    private void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) return;
+        FrameStreamer streamer = frameStreamer;
+        Bitmap frame = null;
+        int width = 0;
+        int height = 0;
+        long timestamp = 0;
+        synchronized (imageLock) {
+            if (latestImage != null) latestImage.close();
+            latestImage = image;
+            // 锁内只复制像素，哈希和编码在推送线程完成
+            if (streamer != null && streamer.wants(SystemClock.uptimeMillis())) {
+                frame = framePool.fromImage(image);
+                width = image.getWidth();
+                height = image.getHeight();
+                timestamp = image.getTimestamp();
+            }
+        }
+        if (frame != null) {
+            streamer.offer(frame, width, height, timestamp, framePool);
+        }
+    }
+
+    /**
+     * 开始推送屏幕帧，替换已有的推送
+     */
+    public void startStream(FrameStreamer streamer) {
+        FrameStreamer previous = frameStreamer;
+        frameStreamer = streamer;
+        if (previous != null) previous.stop();
+    }
+
+    public void stopStream() {
+        startStream(null);
+    }
+
     public String screenshot() {
-        String base64=null;
-        if(imageReader!=null){
-            // 获取屏幕图像
-            Image image = imageReader.acquireLatestImage();
-            if (image == null) return null;
+        return screenshot(new CaptureOptions());
+    }
 
-            // 转换为 Bitmap
-            Bitmap bitmap = processImage(image);
-            base64 = encodeToBase64(bitmap);
+    /**
+     * 按截图参数截取屏幕，返回 Base64 编码的图像
+     */
+    public String screenshot(CaptureOptions options) {
+        FramePool.Buffer image = capture(options, null);
+        if (image == null) return null;
+        String base64 = Base64.encodeToString(image.array(), 0, image.size(), Base64.NO_WRAP);
+        image.release();
+        return base64;
+    }
 
-            // 清理资源
-            image.close();
-            bitmap.recycle();
+    /**
+     * 截取屏幕并按指定格式压缩
+     * @return 压缩后的图像数据，用完后调用 release 归还；没有可用图像时返回 null
+     */
+    public FramePool.Buffer capture(Bitmap.CompressFormat format, int quality) {
+        return capture(new CaptureOptions().setFormat(format).setQuality(quality), null);
+    }
+
+    /**
+     * 按截图参数截取屏幕，裁剪和缩放在压缩前完成
+     * @param outSize 非空时写入输出图像的宽高
+     * @return 压缩后的图像数据，用完后调用 release 归还；没有可用图像时返回 null
+     * @throws IllegalArgumentException 裁剪区域完全在屏幕外
+     */
+    public FramePool.Buffer capture(CaptureOptions options, int[] outSize) {
+        long start = SystemClock.uptimeMillis();
+        Bitmap bitmap;
+        int width;
+        int height;
+        synchronized (imageLock) {
+            if (latestImage == null) return null;
+            // 转换为 Bitmap
+            bitmap = framePool.fromImage(latestImage);
+            width = latestImage.getWidth();
+            height = latestImage.getHeight();
         }
-        return base64;
+        FramePool.Buffer output;
+        try {
+            output = framePool.encode(bitmap, width, height, options, outSize);
+        } finally {
+            // 归还位图
+            framePool.releaseBitmap(bitmap);
+        }
+        lastCaptureLatency = SystemClock.uptimeMillis() - start;
+        return output;
     }
 
-    private String encodeToBase64(Bitmap bitmap) {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 70, output);
-        return Base64.encodeToString(output.toByteArray(), Base64.NO_WRAP);
+    /**
+     * 在最近一帧上依次采样，不转换为位图
+     * @return 帧的时间戳，没有可用图像时返回 -1
+     */
+    public long probe(List<PixelProbe> probes) {
+        synchronized (imageLock) {
+            if (latestImage == null) return -1;
+            for (PixelProbe probe : probes) {
+                probe.sample(latestImage);
+            }
+            return latestImage.getTimestamp();
+        }
     }
 
-    private Bitmap processImage(Image image) {
-        // 获取图像数据
-        Image.Plane[] planes = image.getPlanes();
-        ByteBuffer buffer = planes[0].getBuffer();
-        int width = image.getWidth();
-        int height = image.getHeight();
+    /**
+     * 最近一帧按 factor（至少 MIN_GRAY_FACTOR）降采样的灰度图，屏幕没有变化时返回缓存
+     * 持有图像锁时只把帧复制到池中的位图，灰度转换在锁外完成
+     * @return 没有可用图像时返回 null
+     */
+    public GrayImage grayFrame(int factor) {
+        factor = Math.max(MIN_GRAY_FACTOR, factor);
+        Bitmap bitmap;
+        int width;
+        int height;
+        long timestamp;
+        synchronized (imageLock) {
+            if (latestImage == null) return null;
+            timestamp = latestImage.getTimestamp();
+            GrayImage cached = grayFrame != null ? grayFrame.get() : null;
+            if (cached != null && grayTimestamp == timestamp && grayFactor == factor) return cached;
+            bitmap = framePool.fromImage(latestImage);
+            width = latestImage.getWidth();
+            height = latestImage.getHeight();
+        }
+        GrayImage gray;
+        try {
+            gray = GrayImage.fromBitmap(bitmap, width, height, factor);
+        } finally {
+            framePool.releaseBitmap(bitmap);
+        }
+        synchronized (imageLock) {
+            grayFrame = new WeakReference<>(gray);
+            grayTimestamp = timestamp;
+            grayFactor = factor;
+        }
+        return gray;
+    }
 
-        // 创建 Bitmap
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bitmap.copyPixelsFromBuffer(buffer);
+    /**
+     * 最近一帧的差值哈希，按帧时间戳缓存，与 grayFrame 的缓存互不影响
+     * 持有图像锁时只在 9 × 8 的稀疏网格上采样，哈希在锁外计算
+     * @return 还没有帧时返回 null
+     */
+    public Long frameHash() {
+        GrayImage grid;
+        long timestamp;
+        synchronized (imageLock) {
+            if (latestImage == null) return null;
+            timestamp = latestImage.getTimestamp();
+            if (hashTimestamp == timestamp) return frameHash;
+            grid = GrayImage.sample(latestImage, 9, 8);
+        }
+        long hash = grid.dHash();
+        synchronized (imageLock) {
+            frameHash = hash;
+            hashTimestamp = timestamp;
+        }
+        return hash;
+    }
 
-        return bitmap;
+    /**
+     * 最近一次截图的耗时（毫秒），还没有截过图时为 -1
+     */
+    public long getLastCaptureLatency() {
+        return lastCaptureLatency;
     }
 
+    /**
+     * 将格式名（jpeg、webp、png）转换为压缩格式，未知格式返回 null
+     */
+    public static Bitmap.CompressFormat compressFormat(String name) {
+        if (name == null) return Bitmap.CompressFormat.JPEG;
+        switch (name.toLowerCase()) {
+            case "jpeg":
+            case "jpg":
+                return Bitmap.CompressFormat.JPEG;
+            case "webp":
+                return Bitmap.CompressFormat.WEBP_LOSSY;
+            case "webp_lossless":
+                return Bitmap.CompressFormat.WEBP_LOSSLESS;
+            case "png":
+                return Bitmap.CompressFormat.PNG;
+            default:
+                return null;
+        }
+    }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         stopSelf();
+        stopStream();
         if (virtualDisplay != null) virtualDisplay.release();
+        synchronized (imageLock) {
+            if (latestImage != null) latestImage.close();
+            latestImage = null;
+        }
         if (imageReader != null) imageReader.close();
+        if (captureThread != null) captureThread.quitSafely();
         if (mediaProjection != null) mediaProjection.stop();
 
     }
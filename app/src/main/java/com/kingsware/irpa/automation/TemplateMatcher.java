@@ -0,0 +1,327 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 屏幕上查找模板图像
+ * 模板上传一次后按内容的 SHA-1 缓存，之后只需传哈希。匹配在降采样的灰度图上做归一化互相关：
+ * 先在金字塔最粗一层全图搜索，保留得分最高的几个候选，再逐层放大只在候选附近细化，
+ * 窗口和、平方和用积分图计算。多个缩放比例分别搜索，取得分最高的结果。
+ */
+public class TemplateMatcher {
+    private static final String TAG = "TemplateMatcher";
+    private static final int MAX_TEMPLATES = 32;
+    // 模板灰度数据的总大小上限（像素数）
+    private static final int MAX_PIXELS = 4 * 1024 * 1024;
+    // 最粗一层模板的最小边长
+    private static final int MIN_TEMPLATE_SIZE = 8;
+    private static final int CANDIDATES = 5;
+    private static final int REFINE_RADIUS = 2;
+
+    private static class Match {
+        final int x;
+        final int y;
+        final float score;
+
+        Match(int x, int y, float score) {
+            this.x = x;
+            this.y = y;
+            this.score = score;
+        }
+    }
+
+    public static class Template {
+        public final String hash;
+        final GrayImage image;
+
+        Template(String hash, GrayImage image) {
+            this.hash = hash;
+            this.image = image;
+        }
+
+        public int getWidth() {
+            return image.width;
+        }
+
+        public int getHeight() {
+            return image.height;
+        }
+    }
+
+    private final LinkedHashMap<String, Template> templates = new LinkedHashMap<>(16, 0.75f, true);
+    private int totalPixels;
+
+    /**
+     * 解码并缓存模板图像，已缓存的直接返回
+     * @param data PNG、JPEG 等编码的图像
+     */
+    public synchronized Template put(byte[] data) {
+        String hash = hash(data);
+        Template template = templates.get(hash);
+        if (template != null) return template;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bitmap == null) {
+            throw new IllegalArgumentException("invalid template image");
+        }
+        GrayImage image = GrayImage.fromBitmap(bitmap, 1);
+        bitmap.recycle();
+        if (image.width < MIN_TEMPLATE_SIZE || image.height < MIN_TEMPLATE_SIZE) {
+            throw new IllegalArgumentException("template too small: " + image.width + "x" + image.height);
+        }
+        template = new Template(hash, image);
+        templates.put(hash, template);
+        totalPixels += image.data.length;
+        trim();
+        Log.d(TAG, "template " + hash + " " + image.width + "x" + image.height + ", cached " + templates.size());
+        return template;
+    }
+
+    /**
+     * @return 缓存的模板，不存在时返回 null
+     */
+    public synchronized Template get(String hash) {
+        return templates.get(hash);
+    }
+
+    public synchronized int size() {
+        return templates.size();
+    }
+
+    private void trim() {
+        Iterator<Template> it = templates.values().iterator();
+        while ((templates.size() > MAX_TEMPLATES || totalPixels > MAX_PIXELS) && templates.size() > 1) {
+            totalPixels -= it.next().image.data.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * 在屏幕图像中查找模板
+     * @param screen 按 factor 降采样的屏幕灰度图
+     * @param region 搜索区域（屏幕坐标），为 null 时搜索全屏
+     * @param scales 模板相对原始尺寸的缩放比例
+     * @return {found, score, scale, bounds}，bounds 为屏幕坐标；区域小于模板时返回 null
+     */
+    public static HashMap<String, Object> locate(GrayImage screen, int factor, Template template,
+                                                 Rect region, float[] scales, float threshold) {
+        int offsetX = 0;
+        int offsetY = 0;
+        if (region != null) {
+            screen = screen.crop(new Rect(region.left / factor, region.top / factor,
+                    (region.right + factor - 1) / factor, (region.bottom + factor - 1) / factor));
+            if (screen == null) return null;
+            offsetX = Math.max(0, region.left / factor);
+            offsetY = Math.max(0, region.top / factor);
+        }
+        List<GrayImage> pyramid = new ArrayList<>();
+        pyramid.add(screen);
+        float bestScale = 0;
+        Match best = null;
+        for (float scale : scales) {
+            int tw = Math.round(template.image.width * scale / factor);
+            int th = Math.round(template.image.height * scale / factor);
+            if (tw < MIN_TEMPLATE_SIZE / 2 || th < MIN_TEMPLATE_SIZE / 2 || tw > screen.width || th > screen.height) {
+                continue;
+            }
+            Match match = match(pyramid, template.image.resize(tw, th));
+            if (match != null && (best == null || match.score > best.score)) {
+                best = match;
+                bestScale = scale;
+            }
+        }
+        if (best == null) return null;
+        HashMap<String, Object> result = new HashMap<>();
+        int left = (best.x + offsetX) * factor;
+        int top = (best.y + offsetY) * factor;
+        int width = Math.round(template.image.width * bestScale);
+        int height = Math.round(template.image.height * bestScale);
+        result.put("found", best.score >= threshold);
+        result.put("score", best.score);
+        result.put("scale", bestScale);
+        result.put("bounds", Arrays.asList(left, top, left + width, top + height));
+        return result;
+    }
+
+    /**
+     * 金字塔匹配，pyramid 按需向下补齐层级
+     * @return 最佳位置，没有可搜索的位置时返回 null
+     */
+    private static Match match(List<GrayImage> pyramid, GrayImage template) {
+        List<GrayImage> templates = new ArrayList<>();
+        templates.add(template);
+        while (true) {
+            GrayImage t = templates.get(templates.size() - 1);
+            if (t.width / 2 < MIN_TEMPLATE_SIZE || t.height / 2 < MIN_TEMPLATE_SIZE) break;
+            if (pyramid.size() < templates.size() + 1) {
+                pyramid.add(pyramid.get(pyramid.size() - 1).half());
+            }
+            templates.add(t.half());
+        }
+        int level = templates.size() - 1;
+        float[] scores = new float[CANDIDATES];
+        int[] xs = new int[CANDIDATES];
+        int[] ys = new int[CANDIDATES];
+        Arrays.fill(scores, -2);
+        Correlation[] levels = new Correlation[level + 1];
+        Correlation coarse = levels[level] = new Correlation(pyramid.get(level), templates.get(level));
+        for (int y = 0; y <= coarse.maxY; y++) {
+            for (int x = 0; x <= coarse.maxX; x++) {
+                insert(scores, xs, ys, coarse.score(x, y), x, y);
+            }
+        }
+        Match best = null;
+        for (int c = 0; c < CANDIDATES; c++) {
+            if (scores[c] < -1) break;
+            int x = xs[c];
+            int y = ys[c];
+            float score = scores[c];
+            for (int l = level - 1; l >= 0; l--) {
+                if (levels[l] == null) levels[l] = new Correlation(pyramid.get(l), templates.get(l));
+                Correlation fine = levels[l];
+                int cx = x * 2;
+                int cy = y * 2;
+                score = -2;
+                for (int dy = -REFINE_RADIUS; dy <= REFINE_RADIUS; dy++) {
+                    for (int dx = -REFINE_RADIUS; dx <= REFINE_RADIUS; dx++) {
+                        int px = cx + dx;
+                        int py = cy + dy;
+                        if (px < 0 || py < 0 || px > fine.maxX || py > fine.maxY) continue;
+                        float s = fine.score(px, py);
+                        if (s > score) {
+                            score = s;
+                            x = px;
+                            y = py;
+                        }
+                    }
+                }
+            }
+            if (score >= -1 && (best == null || score > best.score)) {
+                best = new Match(x, y, score);
+            }
+        }
+        return best;
+    }
+
+    // 按得分插入前 N 名，与已有候选过近时只保留得分高的
+    private static void insert(float[] scores, int[] xs, int[] ys, float score, int x, int y) {
+        if (score <= scores[scores.length - 1]) return;
+        for (int i = 0; i < scores.length; i++) {
+            if (Math.abs(xs[i] - x) <= REFINE_RADIUS && Math.abs(ys[i] - y) <= REFINE_RADIUS && scores[i] >= -1) {
+                if (score <= scores[i]) return;
+                // 移除过近的旧候选
+                System.arraycopy(scores, i + 1, scores, i, scores.length - i - 1);
+                System.arraycopy(xs, i + 1, xs, i, xs.length - i - 1);
+                System.arraycopy(ys, i + 1, ys, i, ys.length - i - 1);
+                scores[scores.length - 1] = -2;
+                break;
+            }
+        }
+        int pos = scores.length - 1;
+        while (pos > 0 && scores[pos - 1] < score) {
+            scores[pos] = scores[pos - 1];
+            xs[pos] = xs[pos - 1];
+            ys[pos] = ys[pos - 1];
+            pos--;
+        }
+        scores[pos] = score;
+        xs[pos] = x;
+        ys[pos] = y;
+    }
+
+    /**
+     * 一层图像上的归一化互相关，窗口均值和方差由积分图得到
+     */
+    private static class Correlation {
+        final GrayImage image;
+        final float[] template;
+        final int tw;
+        final int th;
+        final int maxX;
+        final int maxY;
+        final double[] sum;
+        final double[] sqSum;
+        final double templateNorm;
+
+        Correlation(GrayImage image, GrayImage t) {
+            this.image = image;
+            this.tw = t.width;
+            this.th = t.height;
+            this.maxX = image.width - tw;
+            this.maxY = image.height - th;
+            int n = tw * th;
+            double mean = 0;
+            for (float v : t.data) mean += v;
+            mean /= n;
+            template = new float[n];
+            double norm = 0;
+            for (int i = 0; i < n; i++) {
+                template[i] = (float) (t.data[i] - mean);
+                norm += template[i] * template[i];
+            }
+            templateNorm = Math.sqrt(norm);
+            int w = image.width + 1;
+            sum = new double[w * (image.height + 1)];
+            sqSum = new double[sum.length];
+            for (int y = 0; y < image.height; y++) {
+                double row = 0;
+                double sqRow = 0;
+                for (int x = 0; x < image.width; x++) {
+                    float v = image.data[y * image.width + x];
+                    row += v;
+                    sqRow += v * v;
+                    sum[(y + 1) * w + x + 1] = sum[y * w + x + 1] + row;
+                    sqSum[(y + 1) * w + x + 1] = sqSum[y * w + x + 1] + sqRow;
+                }
+            }
+        }
+
+        float score(int x, int y) {
+            int w = image.width + 1;
+            int a = y * w + x;
+            int b = a + tw;
+            int c = (y + th) * w + x;
+            int d = c + tw;
+            int n = tw * th;
+            double s = sum[d] - sum[b] - sum[c] + sum[a];
+            double sq = sqSum[d] - sqSum[b] - sqSum[c] + sqSum[a];
+            double variance = sq - s * s / n;
+            // 平坦区域或平坦模板没有可比性
+            if (variance < 1e-3 || templateNorm < 1e-3) return 0;
+            double cross = 0;
+            float[] data = image.data;
+            for (int j = 0, k = 0; j < th; j++) {
+                int row = (y + j) * image.width + x;
+                for (int i = 0; i < tw; i++, k++) {
+                    cross += template[k] * data[row + i];
+                }
+            }
+            // 模板已去均值，窗口均值项为零
+            return (float) (cross / (templateNorm * Math.sqrt(variance)));
+        }
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
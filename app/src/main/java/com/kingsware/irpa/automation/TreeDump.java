@@ -0,0 +1,231 @@
+package com.kingsware.irpa.automation;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 节点树导出
+ * 每个节点写成一行 JSON 数组 [id, parent, depth, 字段...]，字段按 fields 顺序投影；
+ * 输出分块写入池中的缓冲，块只在节点边界切分，每块可单独解析；一块写满即交给 ChunkListener 发出，
+ * 导出过程中只持有正在写的一块，内存占用与 chunkSize 相当，与节点数无关。
+ * 直接读取快照中缓存的属性和边界，不为每个节点创建对象。
+ */
+public class TreeDump {
+    public static final List<String> FIELDS = Arrays.asList("class", "text", "desc", "resId", "bounds", "flags", "package");
+    public static final List<String> DEFAULT_FIELDS = Arrays.asList("class", "text", "desc", "resId", "bounds");
+    // flags 字段的位含义，从最低位开始
+    public static final List<String> FLAG_NAMES = Arrays.asList("clickable", "longClickable", "checkable", "checked",
+            "enabled", "focusable", "focused", "selected", "scrollable", "editable", "visible");
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+    private static final JsonFactory factory = new JsonFactory();
+    private static final SerializedString LINE_SEPARATOR = new SerializedString("\n");
+    private static final FramePool pool = new FramePool(DEFAULT_CHUNK_SIZE + MIN_CHUNK_SIZE);
+
+    public interface ChunkListener {
+        /**
+         * @param seq 分块序号，从 0 开始
+         * @param last 是否为最后一块
+         * @param chunk 写完的分块，发送后需 release
+         */
+        void onChunk(int seq, boolean last, FramePool.Buffer chunk);
+    }
+
+    private final int[] fields;
+    private final ChunkListener listener;
+    private int maxDepth = -1;
+    private int maxNodes = Integer.MAX_VALUE;
+    private boolean visibleOnly;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    private FramePool.Buffer chunk;
+    private int chunks;
+    private JsonGenerator generator;
+    private int count;
+    private boolean truncated;
+    long version;
+
+    /**
+     * @param fields 输出的字段，取值见 FIELDS，为 null 时使用 DEFAULT_FIELDS
+     * @param listener 接收写完的分块
+     */
+    public TreeDump(Collection<String> fields, ChunkListener listener) {
+        this.listener = listener;
+        List<String> names = new ArrayList<>(fields != null ? fields : DEFAULT_FIELDS);
+        this.fields = new int[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            this.fields[i] = FIELDS.indexOf(names.get(i));
+            if (this.fields[i] < 0) {
+                throw new IllegalArgumentException("unknown field: " + names.get(i));
+            }
+        }
+    }
+
+    /**
+     * 相对起点的最大深度，-1 表示不限
+     */
+    public TreeDump setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * 最多导出的节点数，超过时截断
+     */
+    public TreeDump setMaxNodes(int maxNodes) {
+        this.maxNodes = maxNodes > 0 ? maxNodes : Integer.MAX_VALUE;
+        return this;
+    }
+
+    /**
+     * 只导出用户可见的节点，不可见节点的子树一并跳过
+     */
+    public TreeDump setVisibleOnly(boolean visibleOnly) {
+        this.visibleOnly = visibleOnly;
+        return this;
+    }
+
+    public TreeDump setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+        return this;
+    }
+
+    public List<String> getFields() {
+        List<String> names = new ArrayList<>(fields.length);
+        for (int field : fields) {
+            names.add(FIELDS.get(field));
+        }
+        return names;
+    }
+
+    /**
+     * 已发出的分块数
+     */
+    public int getChunks() {
+        return chunks;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    boolean accept(NodeSnapshot.Entry entry, int depth) {
+        if (maxDepth >= 0 && depth > maxDepth) return false;
+        return !visibleOnly || (!entry.bounds.isEmpty() && entry.node.isVisibleToUser());
+    }
+
+    boolean isFull() {
+        if (count < maxNodes) return false;
+        truncated = true;
+        return true;
+    }
+
+    void write(NodeSnapshot.Entry entry, int parent, int depth) throws IOException {
+        if (generator == null || chunk.size() + generator.getOutputBuffered() >= chunkSize) {
+            nextChunk();
+        }
+        generator.writeStartArray();
+        generator.writeNumber(entry.id);
+        generator.writeNumber(parent);
+        generator.writeNumber(depth);
+        for (int field : fields) {
+            switch (field) {
+                case 0: generator.writeString(entry.className); break;
+                case 1: generator.writeString(entry.text); break;
+                case 2: generator.writeString(entry.desc); break;
+                case 3: generator.writeString(entry.resId); break;
+                case 4: {
+                    Rect b = entry.bounds;
+                    generator.writeStartArray();
+                    generator.writeNumber(b.left);
+                    generator.writeNumber(b.top);
+                    generator.writeNumber(b.right);
+                    generator.writeNumber(b.bottom);
+                    generator.writeEndArray();
+                    break;
+                }
+                case 5: generator.writeNumber(flagMask(entry.node)); break;
+                case 6: {
+                    CharSequence pkg = entry.node.getPackageName();
+                    generator.writeString(pkg != null ? pkg.toString() : null);
+                    break;
+                }
+            }
+        }
+        generator.writeEndArray();
+        count++;
+    }
+
+    /**
+     * 结束导出，发出最后一块
+     */
+    void finish() throws IOException {
+        if (chunk != null) {
+            emit(true);
+        }
+    }
+
+    /**
+     * 导出失败时归还未发出的分块
+     */
+    public void release() {
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
+            generator = null;
+        }
+    }
+
+    private void emit(boolean last) throws IOException {
+        generator.writeRaw('\n');
+        generator.close();
+        generator = null;
+        FramePool.Buffer done = chunk;
+        chunk = null;
+        listener.onChunk(chunks++, last, done);
+    }
+
+    private void nextChunk() throws IOException {
+        if (chunk != null) {
+            emit(false);
+        }
+        chunk = pool.acquireBuffer();
+        generator = factory.createGenerator(chunk);
+        generator.setRootValueSeparator(LINE_SEPARATOR);
+    }
+
+    private static int flagMask(AccessibilityNodeInfo node) {
+        int mask = 0;
+        if (node.isClickable()) mask |= 1;
+        if (node.isLongClickable()) mask |= 1 << 1;
+        if (node.isCheckable()) mask |= 1 << 2;
+        if (node.isChecked()) mask |= 1 << 3;
+        if (node.isEnabled()) mask |= 1 << 4;
+        if (node.isFocusable()) mask |= 1 << 5;
+        if (node.isFocused()) mask |= 1 << 6;
+        if (node.isSelected()) mask |= 1 << 7;
+        if (node.isScrollable()) mask |= 1 << 8;
+        if (node.isEditable()) mask |= 1 << 9;
+        if (node.isVisibleToUser()) mask |= 1 << 10;
+        return mask;
+    }
+}
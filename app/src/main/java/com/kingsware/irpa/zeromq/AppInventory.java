@@ -0,0 +1,345 @@
+package com.kingsware.irpa.zeromq;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 已安装应用清单
+ * 服务启动时在后台线程加载，加载完成前的查询等待加载：先读取上次保存的清单，再与 PackageManager 对比，
+ * 只为新增或更新过（lastUpdateTime 变化）的应用查询名称和启动 Activity。
+ * 之后通过应用安装、卸载、更新广播增量维护，并保存到文件。
+ * 每次变化递增 version，应用记录它最后一次变化时的 version，卸载的应用保留删除记录，
+ * 用于按版本查询变化；删除记录超过 MAX_REMOVED 时丢弃最早的部分，
+ * 更早的版本只能重新获取完整清单。
+ */
+public class AppInventory {
+    private static final String TAG = "AppInventory";
+    private static final String FILE_NAME = "apps.json";
+    private static final int MAX_REMOVED = 512;
+
+    private final Context context;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> new Thread(r, "AppInventory"));
+
+    // 按包名排序，分页结果稳定
+    private final TreeMap<String, HashMap<String, Object>> apps = new TreeMap<>();
+    // 已卸载的包名和卸载时的 version
+    private final HashMap<String, Long> removed = new HashMap<>();
+    private long version;
+    // 小于 floor 的版本无法给出变化
+    private long floor;
+    private CompletableFuture<AppInventory> loaded;
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            Uri data = intent.getData();
+            if (data == null) return;
+            String packageName = data.getSchemeSpecificPart();
+            boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+            String action = intent.getAction();
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
+                // 更新时先收到 REMOVED(replacing)，随后还有 REPLACED
+                if (!replacing) worker.execute(() -> remove(packageName));
+            } else if (Intent.ACTION_PACKAGE_ADDED.equals(action) && replacing) {
+                return;
+            } else {
+                worker.execute(() -> update(packageName));
+            }
+        }
+    };
+
+    public AppInventory(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * 注册应用变化广播，并在后台开始加载
+     */
+    public void start() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        // 应用变化是系统广播，不需要接收其他应用的广播
+        ContextCompat.registerReceiver(context, packageReceiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+        load();
+    }
+
+    public void stop() {
+        context.unregisterReceiver(packageReceiver);
+        worker.shutdown();
+    }
+
+    /**
+     * 加载完成时完成的 future，多次调用只加载一次
+     */
+    public synchronized CompletableFuture<AppInventory> load() {
+        if (loaded == null) {
+            loaded = CompletableFuture.supplyAsync(() -> {
+                restore();
+                refresh();
+                return this;
+            }, worker);
+        }
+        return loaded;
+    }
+
+    /**
+     * 全部应用，兼容旧的 apps 响应格式
+     */
+    public synchronized ArrayList<Map<String, Object>> list() {
+        ArrayList<Map<String, Object>> list = new ArrayList<>(apps.size());
+        for (HashMap<String, Object> app : apps.values()) {
+            list.add(describe(app));
+        }
+        return list;
+    }
+
+    /**
+     * 查询应用
+     * @param since 大于等于 0 时只返回该版本之后变化的应用，并附带之后卸载的包名
+     * @param launchableOnly 只返回有启动 Activity 的应用
+     * @param prefix 包名前缀，为 null 时不过滤
+     * @param limit 最多返回的数量，小于等于 0 时不限制
+     */
+    public synchronized HashMap<String, Object> query(long since, boolean launchableOnly, String prefix, int offset, int limit) {
+        boolean reset = since >= 0 && since < floor;
+        boolean changesOnly = since >= 0 && !reset;
+        ArrayList<Map<String, Object>> matched = new ArrayList<>();
+        Map<String, HashMap<String, Object>> range = prefix == null || prefix.isEmpty() ? apps
+                : apps.subMap(prefix, prefix + Character.MAX_VALUE);
+        int total = 0;
+        for (HashMap<String, Object> app : range.values()) {
+            if (launchableOnly && app.get("mainActivity") == null) continue;
+            if (changesOnly && (Long) app.get("version") <= since) continue;
+            if (total >= offset && (limit <= 0 || matched.size() < limit)) {
+                matched.add(describe(app));
+            }
+            total++;
+        }
+        HashMap<String, Object> resp = new HashMap<>();
+        resp.put("version", version);
+        resp.put("total", total);
+        resp.put("offset", offset);
+        resp.put("apps", matched);
+        if (since >= 0) {
+            resp.put("since", since);
+            resp.put("reset", reset);
+            ArrayList<String> removedList = new ArrayList<>();
+            if (changesOnly) {
+                for (Map.Entry<String, Long> entry : removed.entrySet()) {
+                    if (entry.getValue() > since && (prefix == null || entry.getKey().startsWith(prefix))) {
+                        removedList.add(entry.getKey());
+                    }
+                }
+            }
+            resp.put("removed", removedList);
+        }
+        return resp;
+    }
+
+    private static Map<String, Object> describe(HashMap<String, Object> app) {
+        HashMap<String, Object> desc = new HashMap<>();
+        desc.put("name", app.get("name"));
+        desc.put("package", app.get("package"));
+        desc.put("mainActivity", app.get("mainActivity"));
+        desc.put("version", app.get("version"));
+        return desc;
+    }
+
+    /**
+     * 与当前安装的应用对比，只重新读取变化的部分，在 worker 线程执行
+     */
+    private void refresh() {
+        PackageManager pm = context.getPackageManager();
+        List<PackageInfo> packages = pm.getInstalledPackages(0);
+        // 一次查询全部启动 Activity，代替逐个应用查询
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        HashMap<String, String> launchers = new HashMap<>();
+        for (ResolveInfo info : pm.queryIntentActivities(intent, 0)) {
+            if (!launchers.containsKey(info.activityInfo.packageName)) {
+                launchers.put(info.activityInfo.packageName, info.activityInfo.name);
+            }
+        }
+        Set<String> installed = new HashSet<>();
+        List<HashMap<String, Object>> changed = new ArrayList<>();
+        for (PackageInfo info : packages) {
+            installed.add(info.packageName);
+            HashMap<String, Object> known;
+            synchronized (this) {
+                known = apps.get(info.packageName);
+            }
+            if (known != null && ((Number) known.get("updated")).longValue() == info.lastUpdateTime
+                    && Objects.equals(known.get("mainActivity"), launchers.get(info.packageName))) {
+                continue;
+            }
+            HashMap<String, Object> app = read(pm, info, launchers.get(info.packageName));
+            if (app != null) changed.add(app);
+        }
+        synchronized (this) {
+            List<String> gone = new ArrayList<>();
+            for (String packageName : apps.keySet()) {
+                if (!installed.contains(packageName)) gone.add(packageName);
+            }
+            if (changed.isEmpty() && gone.isEmpty()) return;
+            version++;
+            for (HashMap<String, Object> app : changed) {
+                app.put("version", version);
+                apps.put((String) app.get("package"), app);
+                removed.remove(app.get("package"));
+            }
+            for (String packageName : gone) {
+                apps.remove(packageName);
+                removed.put(packageName, version);
+            }
+            trimRemoved();
+            Log.i(TAG, "refresh: " + changed.size() + " changed, " + gone.size() + " removed, version " + version);
+        }
+        persist();
+    }
+
+    private void update(String packageName) {
+        PackageManager pm = context.getPackageManager();
+        HashMap<String, Object> app;
+        try {
+            PackageInfo info = pm.getPackageInfo(packageName, 0);
+            app = read(pm, info, launcherActivity(pm, packageName));
+        } catch (PackageManager.NameNotFoundException e) {
+            remove(packageName);
+            return;
+        }
+        if (app == null) return;
+        synchronized (this) {
+            app.put("version", ++version);
+            apps.put(packageName, app);
+            removed.remove(packageName);
+        }
+        Log.d(TAG, "update: " + packageName);
+        persist();
+    }
+
+    private void remove(String packageName) {
+        synchronized (this) {
+            if (apps.remove(packageName) == null) return;
+            removed.put(packageName, ++version);
+            trimRemoved();
+        }
+        Log.d(TAG, "remove: " + packageName);
+        persist();
+    }
+
+    private HashMap<String, Object> read(PackageManager pm, PackageInfo info, String mainActivity) {
+        try {
+            ApplicationInfo appInfo = info.applicationInfo != null ? info.applicationInfo
+                    : pm.getApplicationInfo(info.packageName, 0);
+            HashMap<String, Object> app = new HashMap<>();
+            app.put("name", pm.getApplicationLabel(appInfo).toString());
+            app.put("package", info.packageName);
+            app.put("mainActivity", mainActivity);
+            app.put("updated", info.lastUpdateTime);
+            return app;
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static String launcherActivity(PackageManager pm, String packageName) {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        intent.setPackage(packageName);
+        List<ResolveInfo> resolveInfos = pm.queryIntentActivities(intent, 0);
+        return resolveInfos.isEmpty() ? null : resolveInfos.get(0).activityInfo.name;
+    }
+
+    // 调用方持有锁
+    private void trimRemoved() {
+        if (removed.size() <= MAX_REMOVED) return;
+        List<Long> versions = new ArrayList<>(removed.values());
+        Collections.sort(versions);
+        floor = versions.get(versions.size() - MAX_REMOVED / 2);
+        removed.values().removeIf(v -> v < floor);
+    }
+
+    private void restore() {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) return;
+        try {
+            Stored stored = mapper.readValue(file, Stored.class);
+            synchronized (this) {
+                version = stored.version;
+                floor = stored.floor;
+                for (HashMap<String, Object> app : stored.apps) {
+                    // JSON 中的数字可能读为 Integer
+                    app.put("version", ((Number) app.get("version")).longValue());
+                    app.put("updated", ((Number) app.get("updated")).longValue());
+                    apps.put((String) app.get("package"), app);
+                }
+                removed.putAll(stored.removed);
+            }
+            Log.i(TAG, "restore: " + apps.size() + " apps, version " + version);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Restore error: " + e.getMessage());
+        }
+    }
+
+    private void persist() {
+        Stored stored = new Stored();
+        synchronized (this) {
+            stored.version = version;
+            stored.floor = floor;
+            stored.apps = new ArrayList<>(apps.values());
+            stored.removed = new HashMap<>(removed);
+        }
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try {
+            mapper.writeValue(tmp, stored);
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Persist error: rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Persist error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 保存到文件的内容
+     */
+    public static class Stored {
+        public long version;
+        public long floor;
+        public List<HashMap<String, Object>> apps = new ArrayList<>();
+        public Map<String, Long> removed = new HashMap<>();
+    }
+}
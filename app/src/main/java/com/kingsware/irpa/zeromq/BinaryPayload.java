@@ -0,0 +1,65 @@
+package com.kingsware.irpa.zeromq;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.kingsware.irpa.automation.FramePool;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 带二进制数据的响应
+ * 通过 ZeroMQ 发送时拆成多帧：JSON 消息头之后每个缓冲一帧，避免 Base64 编码，发送后归还缓冲；
+ * 嵌在 JSON 结构中（如 batch 和脚本的步骤结果）时先经 detach 拼接为 data 并归还缓冲，data 按 Jackson 默认方式编码为 Base64。
+ */
+public class BinaryPayload {
+    @JsonProperty("header")
+    private final HashMap<String, Object> header;
+    private final List<FramePool.Buffer> buffers;
+
+    public BinaryPayload(HashMap<String, Object> header, FramePool.Buffer buffer) {
+        this(header, buffer != null ? Collections.singletonList(buffer) : Collections.<FramePool.Buffer>emptyList());
+    }
+
+    public BinaryPayload(HashMap<String, Object> header, List<FramePool.Buffer> buffers) {
+        this.header = header;
+        this.buffers = buffers;
+    }
+
+    public HashMap<String, Object> getHeader() {
+        return header;
+    }
+
+    @JsonIgnore
+    public List<FramePool.Buffer> getBuffers() {
+        return buffers;
+    }
+
+    @JsonProperty("data")
+    public byte[] getData() {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (FramePool.Buffer buffer : buffers) {
+            data.write(buffer.array(), 0, buffer.size());
+        }
+        return data.toByteArray();
+    }
+
+    public void release() {
+        Outgoing.release(buffers);
+    }
+
+    /**
+     * 把结果转为不引用池中缓冲的形式：BinaryPayload 转为 {header, data} 并归还缓冲，其他结果原样返回
+     */
+    public static Object detach(Object result) {
+        if (!(result instanceof BinaryPayload)) return result;
+        BinaryPayload payload = (BinaryPayload) result;
+        HashMap<String, Object> detached = new HashMap<>();
+        detached.put("header", payload.header);
+        detached.put("data", payload.getData());
+        payload.release();
+        return detached;
+    }
+}
@@ -0,0 +1,130 @@
+package com.kingsware.irpa.zeromq;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 解析后的操作请求
+ * 参数既可以是字符串（兼容旧客户端），也可以是数字、布尔、列表等原生值，取值时统一转换。
+ */
+public class Command {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final String uuid;
+    private final String codec;
+    private final Map<String, Object> params;
+    // 请求来源，响应和推送按此路由
+    final Endpoint endpoint;
+    final byte[] peer;
+
+    public Command(String uuid, String codec, Map<String, Object> params) {
+        this(uuid, codec, params, null, null);
+    }
+
+    /**
+     * 同一请求派生的子命令（如 batch 的各个步骤），沿用 uuid、编码和来源
+     */
+    public Command(Command parent, Map<String, Object> params) {
+        this(parent.uuid, parent.codec, params, parent.endpoint, parent.peer);
+    }
+
+    Command(String uuid, String codec, Map<String, Object> params, Endpoint endpoint, byte[] peer) {
+        this.uuid = uuid;
+        this.codec = codec;
+        this.params = params;
+        this.endpoint = endpoint;
+        this.peer = peer;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    /**
+     * 请求的编码，响应使用同样的编码
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    public String getOperation() {
+        return getString("operation");
+    }
+
+    public Map<String, Object> getParams() {
+        return params;
+    }
+
+    public boolean has(String key) {
+        return params.get(key) != null;
+    }
+
+    public Object get(String key) {
+        return params.get(key);
+    }
+
+    public String getString(String key) {
+        return getString(key, null);
+    }
+
+    public String getString(String key, String defaultValue) {
+        Object value = params.get(key);
+        return value == null ? defaultValue : value.toString();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Object value = params.get(key);
+        if (value == null) return defaultValue;
+        return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+    }
+
+    public long getLong(String key, long defaultValue) {
+        Object value = params.get(key);
+        if (value == null) return defaultValue;
+        return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString().trim());
+    }
+
+    public float getFloat(String key, float defaultValue) {
+        Object value = params.get(key);
+        if (value == null) return defaultValue;
+        return value instanceof Number ? ((Number) value).floatValue() : Float.parseFloat(value.toString().trim());
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = params.get(key);
+        if (value == null) return defaultValue;
+        return value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString().trim());
+    }
+
+    /**
+     * 取结构化参数，字符串按 JSON 解析，原生值直接转换
+     */
+    public <T> T getValue(String key, TypeReference<T> type) throws IOException {
+        Object value = params.get(key);
+        if (value == null) return null;
+        if (value instanceof String) {
+            return mapper.readValue((String) value, type);
+        }
+        return mapper.convertValue(value, type);
+    }
+
+    /**
+     * 必需的参数，缺少时抛出 IllegalArgumentException
+     */
+    public String require(String key) {
+        String value = getString(key);
+        if (value == null) {
+            throw new IllegalArgumentException("missing parameter: " + key);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toString(params);
+    }
+}
@@ -0,0 +1,113 @@
+package com.kingsware.irpa.zeromq;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 按操作名分发请求
+ * 处理器返回的结果直接序列化为响应；返回 CompletableFuture 时在完成后再响应，
+ * 返回 null 表示对应服务不可用。
+ * 截图、应用清单等传输量大或耗时长的操作注册为批量操作，与控制操作分开排队执行。
+ */
+public class CommandDispatcher {
+
+    public interface CommandHandler {
+        Object handle(Command command) throws Exception;
+    }
+
+    private final Map<String, CommandHandler> handlers = new ConcurrentHashMap<>();
+    private final Set<String> bulk = ConcurrentHashMap.newKeySet();
+    private final Set<String> sideEffects = ConcurrentHashMap.newKeySet();
+
+    public CommandDispatcher register(String operation, CommandHandler handler) {
+        handlers.put(operation, handler);
+        return this;
+    }
+
+    public CommandDispatcher registerBulk(String operation, CommandHandler handler) {
+        bulk.add(operation);
+        return register(operation, handler);
+    }
+
+    public boolean isBulk(String operation) {
+        return operation != null && bulk.contains(operation);
+    }
+
+    /**
+     * 标记带副作用的操作：响应太大没有缓存时，相同 uuid 的重试回复错误而不是重新执行
+     */
+    public CommandDispatcher sideEffects(String... operations) {
+        Collections.addAll(sideEffects, operations);
+        return this;
+    }
+
+    public boolean hasSideEffects(String operation) {
+        return operation != null && sideEffects.contains(operation);
+    }
+
+    public boolean has(String operation) {
+        return operation != null && handlers.containsKey(operation);
+    }
+
+    public Set<String> operations() {
+        return handlers.keySet();
+    }
+
+    /**
+     * 执行请求，结果可能是 CompletableFuture
+     * @throws IllegalArgumentException 操作不存在
+     */
+    public Object dispatch(Command command) throws Exception {
+        String operation = command.getOperation();
+        CommandHandler handler = operation != null ? handlers.get(operation) : null;
+        if (handler == null) {
+            throw new IllegalArgumentException("unknown operation: " + operation);
+        }
+        return handler.handle(command);
+    }
+
+    /**
+     * 判断操作结果是否表示失败：null 为服务不可用；wait 未稳定、scrollTo 和 locate 未找到、
+     * probe 颜色不匹配、whereAmI 不是 expect 指定的界面也算失败
+     * @return 失败原因，成功时返回 null
+     */
+    public static String resultError(String operation, Object result) {
+        if (result == null) return "service unavailable";
+        if (!(result instanceof Map)) return null;
+        Map<?, ?> map = (Map<?, ?>) result;
+        switch (operation) {
+            case "wait":
+                return Boolean.TRUE.equals(map.get("stable")) ? null : "wait stable timeout";
+            case "scrollTo":
+                return Boolean.TRUE.equals(map.get("found")) ? null : "node not found";
+            case "probe":
+                return Boolean.TRUE.equals(map.get("match")) ? null : "color mismatch";
+            case "locate":
+                return Boolean.TRUE.equals(map.get("found")) ? null : "template not found";
+            case "whereAmI":
+                return !map.containsKey("match") || Boolean.TRUE.equals(map.get("match")) ? null : "unexpected screen";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 执行请求并等待异步结果，不能在主线程调用
+     */
+    public Object dispatchSync(Command command) throws Exception {
+        Object result = dispatch(command);
+        if (result instanceof CompletableFuture) {
+            try {
+                return ((CompletableFuture<?>) result).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+        return result;
+    }
+}
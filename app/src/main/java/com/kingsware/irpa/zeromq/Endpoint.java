@@ -0,0 +1,280 @@
+package com.kingsware.irpa.zeromq;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kingsware.irpa.automation.FramePool;
+
+import org.zeromq.ZError;
+import org.zeromq.ZMQ;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一个通信端点，只在 I/O 线程使用
+ * 普通地址用 DEALER 连接控制端；以 "bind:" 开头的地址用 ROUTER 监听，可同时服务多个控制端，
+ * 收发的消息前带对端身份帧。
+ * 待发送的消息分控制和批量两条通道：控制消息优先，连续发出 CONTROL_BURST 条后让批量消息发一条，
+ * 大量截图、应用清单不会长时间挡住 stop 之类的控制响应。
+ */
+class Endpoint {
+    private static final String TAG = "ZeroMQEndpoint";
+    static final String BIND_PREFIX = "bind:";
+    private static final String MONITOR_ADDRESS = "inproc://zeromq-monitor-";
+    private static final int ZMTP_HEARTBEAT_IVL = 5000;
+    private static final int ZMTP_HEARTBEAT_TIMEOUT = 15000;
+    private static final int CONTROL_BURST = 8;
+    private static final int MAX_BACKLOG = 1000;
+    // ROUTER 对端超过该时间没有消息时不再发送心跳
+    private static final long PEER_TIMEOUT = 60000;
+
+    private static int monitorCount;
+
+    final String address;
+    final boolean router;
+    ZMQ.Socket socket;
+    ZMQ.Socket monitor;
+    int socketIndex = -1;
+    int monitorIndex = -1;
+
+    boolean connected;
+    long disconnectedAt;
+    long lastSent;
+    long lastHeartbeat;
+
+    private final ArrayDeque<Outgoing> control = new ArrayDeque<>();
+    private final ArrayDeque<Outgoing> bulk = new ArrayDeque<>();
+    private int burst;
+    // ROUTER 对端身份（ISO-8859-1 保留原始字节）和最后收到消息的时间
+    private final HashMap<String, Long> peers = new HashMap<>();
+    // 最近一次 recv 的对端身份
+    byte[] receivedPeer;
+
+    Endpoint(String address) {
+        this.router = address.startsWith(BIND_PREFIX);
+        this.address = router ? address.substring(BIND_PREFIX.length()) : address;
+    }
+
+    /**
+     * 解析逗号分隔的地址列表
+     */
+    static List<Endpoint> parse(String addresses) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String address : addresses.split(",")) {
+            if (!address.trim().isEmpty()) {
+                endpoints.add(new Endpoint(address.trim()));
+            }
+        }
+        return endpoints;
+    }
+
+    void open(ZMQ.Context context, String agentId) {
+        socket = context.socket(router ? ZMQ.ROUTER : ZMQ.DEALER);
+        socket.setLinger(0);
+        socket.setHeartbeatIvl(ZMTP_HEARTBEAT_IVL);
+        socket.setHeartbeatTimeout(ZMTP_HEARTBEAT_TIMEOUT);
+        if (router) {
+            // 对端不存在时发送失败，不会静默丢弃
+            socket.setRouterMandatory(true);
+            Log.d(TAG, "Mq bind:" + address);
+            socket.bind(address);
+            connected = true;
+            return;
+        }
+        socket.setIdentity(agentId.getBytes(ZMQ.CHARSET));
+        // 未连接时发送立即失败，消息留在通道中，重建 socket 时不会丢失
+        socket.setImmediate(true);
+        String monitorAddress = MONITOR_ADDRESS + (++monitorCount);
+        socket.monitor(monitorAddress, ZMQ.EVENT_CONNECTED | ZMQ.EVENT_DISCONNECTED);
+        monitor = context.socket(ZMQ.PAIR);
+        monitor.connect(monitorAddress);
+        Log.d(TAG, "Mq connect:" + address);
+        socket.connect(address);
+        connected = false;
+        disconnectedAt = SystemClock.uptimeMillis();
+    }
+
+    void close() {
+        if (monitor != null) {
+            monitor.close();
+            monitor = null;
+        }
+        socket.close();
+    }
+
+    /**
+     * 处理连接事件
+     * @return 是否刚刚建立连接
+     */
+    boolean monitorEvents() {
+        boolean established = false;
+        ZMQ.Event event;
+        while ((event = ZMQ.Event.recv(monitor, ZMQ.DONTWAIT)) != null) {
+            if (event.getEvent() == ZMQ.EVENT_CONNECTED) {
+                Log.i(TAG, "Connected: " + event.getAddress());
+                connected = true;
+                established = true;
+            } else if (event.getEvent() == ZMQ.EVENT_DISCONNECTED) {
+                Log.w(TAG, "Disconnected: " + event.getAddress());
+                connected = false;
+                disconnectedAt = SystemClock.uptimeMillis();
+            }
+        }
+        return established;
+    }
+
+    /**
+     * 非阻塞地接收一条请求，ROUTER 端点的对端身份记入 receivedPeer
+     * @return 请求内容，没有消息时返回 null
+     */
+    byte[] recv() {
+        byte[] message = socket.recv(ZMQ.DONTWAIT);
+        if (message == null) return null;
+        receivedPeer = null;
+        if (router) {
+            receivedPeer = message;
+            peers.put(new String(message, StandardCharsets.ISO_8859_1), SystemClock.uptimeMillis());
+            // REQ 客户端带有空的分隔帧
+            message = socket.hasReceiveMore() ? socket.recv(0) : new byte[0];
+            while (message.length == 0 && socket.hasReceiveMore()) {
+                message = socket.recv(0);
+            }
+        }
+        // 请求只有一帧，多余的帧丢弃
+        while (socket.hasReceiveMore()) {
+            socket.recv(0);
+        }
+        return message;
+    }
+
+    /**
+     * 放入对应的通道，断开时丢弃可丢弃的消息
+     * @return 超出上限时被挤掉的最早消息，需要由调用方归还
+     */
+    Outgoing add(Outgoing message) {
+        if (!connected && message.droppable) {
+            return message;
+        }
+        (message.bulk ? bulk : control).add(message);
+        if (control.size() + bulk.size() > MAX_BACKLOG) {
+            Log.w(TAG, "Backlog full, drop the oldest message");
+            return !bulk.isEmpty() ? bulk.poll() : control.poll();
+        }
+        return null;
+    }
+
+    boolean hasBacklog() {
+        return !control.isEmpty() || !bulk.isEmpty();
+    }
+
+    int backlogSize() {
+        return control.size() + bulk.size();
+    }
+
+    /**
+     * 按通道优先级取下一条要发的消息，不移除
+     */
+    Outgoing peek() {
+        if (!control.isEmpty() && (bulk.isEmpty() || burst < CONTROL_BURST)) {
+            return control.peek();
+        }
+        return bulk.peek();
+    }
+
+    /**
+     * 移除 peek 返回的消息
+     */
+    void remove(Outgoing message) {
+        if (message.bulk) {
+            bulk.poll();
+            burst = 0;
+        } else {
+            control.poll();
+            burst++;
+        }
+    }
+
+    /**
+     * 非阻塞发送
+     * @return 发送受阻时返回 false；ROUTER 对端已断开时消息无法送达，同样视为已处理返回 true
+     */
+    boolean send(Outgoing message) {
+        int parts = message.frames.size() + message.cached.length;
+        if (router) {
+            if (message.peer == null) return true;
+            if (!socket.send(message.peer, ZMQ.SNDMORE | ZMQ.DONTWAIT)) {
+                if (socket.errno() == ZError.EHOSTUNREACH) {
+                    Log.w(TAG, "Peer gone, message dropped");
+                    peers.remove(new String(message.peer, StandardCharsets.ISO_8859_1));
+                    return true;
+                }
+                return false;
+            }
+            // 身份帧发出后整条消息会一起发送
+            socket.send(message.header, parts == 0 ? 0 : ZMQ.SNDMORE);
+        } else if (!socket.send(message.header, parts == 0 ? ZMQ.DONTWAIT : ZMQ.SNDMORE | ZMQ.DONTWAIT)) {
+            return false;
+        }
+        // 第一帧发出后其余帧不会因队列满失败
+        int sent = 0;
+        for (FramePool.Buffer frame : message.frames) {
+            socket.send(frame.array(), 0, frame.size(), ++sent < parts ? ZMQ.SNDMORE : 0);
+        }
+        for (byte[] frame : message.cached) {
+            socket.send(frame, ++sent < parts ? ZMQ.SNDMORE : 0);
+        }
+        return true;
+    }
+
+    /**
+     * 直接发送单帧消息（心跳），发送不了时跳过；ROUTER 端点发给最近有消息的全部对端
+     */
+    boolean sendNow(byte[] message) {
+        if (!router) {
+            return socket.send(message, ZMQ.DONTWAIT);
+        }
+        long now = SystemClock.uptimeMillis();
+        boolean sent = false;
+        Iterator<Map.Entry<String, Long>> it = peers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> peer = it.next();
+            if (now - peer.getValue() > PEER_TIMEOUT) {
+                it.remove();
+                continue;
+            }
+            if (socket.send(peer.getKey().getBytes(StandardCharsets.ISO_8859_1), ZMQ.SNDMORE | ZMQ.DONTWAIT)) {
+                socket.send(message, 0);
+                sent = true;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * 广播消息的接收方：DEALER 为 null，ROUTER 为最近有消息的全部对端
+     */
+    List<byte[]> broadcastPeers() {
+        List<byte[]> list = new ArrayList<>();
+        if (!router) {
+            list.add(null);
+            return list;
+        }
+        for (String peer : peers.keySet()) {
+            list.add(peer.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return list;
+    }
+
+    void drain(List<Outgoing> out) {
+        out.addAll(control);
+        out.addAll(bulk);
+        control.clear();
+        bulk.clear();
+    }
+}
@@ -0,0 +1,54 @@
+package com.kingsware.irpa.zeromq;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORMapper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * MqMessage 的线上编码
+ * 支持 JSON 和 CBOR，直接读写 ZeroMQ 帧的字节数组。收到的消息按首字节判断编码：
+ * JSON 对象以 '{'（或空白）开头，CBOR map 的首字节不会是这些字符。响应使用请求的编码，
+ * 主动推送和心跳使用通过 codec 操作协商的编码，默认 JSON 便于调试。
+ */
+public class MessageCodec {
+    public static final String JSON = "json";
+    public static final String CBOR = "cbor";
+    public static final List<String> SUPPORTED = Arrays.asList(JSON, CBOR);
+
+    private static final TypeReference<MqMessage<HashMap<String,Object>>> REQUEST_TYPE =
+            new TypeReference<MqMessage<HashMap<String,Object>>>() {};
+
+    private final ObjectMapper json = new ObjectMapper();
+    private final ObjectMapper cbor = new CBORMapper();
+
+    public static boolean isSupported(String codec) {
+        return SUPPORTED.contains(codec);
+    }
+
+    /**
+     * 判断帧的编码
+     */
+    public static String detect(byte[] frame) {
+        if (frame.length == 0) return JSON;
+        byte first = frame[0];
+        return first == '{' || first == ' ' || first == '\t' || first == '\r' || first == '\n' ? JSON : CBOR;
+    }
+
+    public MqMessage<HashMap<String,Object>> decode(byte[] frame, String codec) throws IOException {
+        return mapper(codec).readValue(frame, REQUEST_TYPE);
+    }
+
+    public byte[] encode(Object message, String codec) throws JsonProcessingException {
+        return mapper(codec).writeValueAsBytes(message);
+    }
+
+    private ObjectMapper mapper(String codec) {
+        return CBOR.equals(codec) ? cbor : json;
+    }
+}
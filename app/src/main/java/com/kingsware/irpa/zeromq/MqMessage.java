@@ -16,6 +16,10 @@ import java.util.UUID;
 public class MqMessage<T> {
     public static final String HEARTBEAT="hearbeat";
     public static final String OPERATION="operation";
+    public static final String FRAME="frame";
+    public static final String SCREEN="screen";
+    public static final String PROGRESS="progress";
+    public static final String CHUNK="chunk";
     @JsonProperty("uuid")
     private String uuid;
     @JsonProperty("type")
@@ -0,0 +1,52 @@
+package com.kingsware.irpa.zeromq;
+
+import com.kingsware.irpa.automation.FramePool;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 待发送的消息：消息头之后依次附带二进制帧（发送后归还）和缓存的帧
+ */
+class Outgoing {
+    private static final byte[][] NO_CACHED = new byte[0][];
+
+    final Endpoint endpoint;
+    // ROUTER 端点的对端身份
+    final byte[] peer;
+    final byte[] header;
+    final List<FramePool.Buffer> frames;
+    final byte[][] cached;
+    final boolean bulk;
+    // 断开时可以丢弃，如屏幕帧
+    final boolean droppable;
+
+    Outgoing(Endpoint endpoint, byte[] peer, byte[] header, List<FramePool.Buffer> frames,
+             byte[][] cached, boolean bulk, boolean droppable) {
+        this.endpoint = endpoint;
+        this.peer = peer;
+        this.header = header;
+        this.frames = frames;
+        this.cached = cached;
+        this.bulk = bulk;
+        this.droppable = droppable;
+    }
+
+    Outgoing(Endpoint endpoint, byte[] peer, byte[] header, List<FramePool.Buffer> frames, boolean bulk) {
+        this(endpoint, peer, header, frames, NO_CACHED, bulk, false);
+    }
+
+    Outgoing(Endpoint endpoint, byte[] peer, byte[] header, byte[][] cached, boolean bulk) {
+        this(endpoint, peer, header, Collections.<FramePool.Buffer>emptyList(), cached, bulk, false);
+    }
+
+    void release() {
+        release(frames);
+    }
+
+    static void release(List<FramePool.Buffer> frames) {
+        for (FramePool.Buffer frame : frames) {
+            frame.release();
+        }
+    }
+}
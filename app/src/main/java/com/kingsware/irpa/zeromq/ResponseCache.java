@@ -0,0 +1,95 @@
+package com.kingsware.irpa.zeromq;
+
+import com.kingsware.irpa.automation.FramePool;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 最近请求的响应缓存，用于重试去重
+ * 请求开始执行时登记 uuid，完成后保存编码好的响应。相同 uuid 的请求再次到达时，
+ * 执行中的直接忽略（完成后会正常响应），已完成的重发缓存的响应，不会重复执行点击等操作。
+ * 按最近使用淘汰。响应超过 MAX_ENTRY_BYTES 时不保存数据：batch、脚本等带副作用的请求标记为 tooLarge，
+ * 重复请求时回复无法重发的错误，不会因重试执行两次；截图、dump 等只读请求删除记录，重试时重新执行。
+ */
+class ResponseCache {
+    private static final int MAX_ENTRIES = 256;
+    private static final int MAX_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_ENTRY_BYTES = 512 * 1024;
+
+    static class Entry {
+        boolean done;
+        // 为 null 表示没有响应
+        byte[] header;
+        byte[][] frames;
+        // 已完成但响应太大没有保存
+        boolean tooLarge;
+        int bytes;
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true);
+    private int totalBytes;
+
+    /**
+     * 登记开始执行的请求
+     * @return 已有的记录，为 null 时表示新请求，需要执行
+     */
+    synchronized Entry begin(String uuid) {
+        Entry entry = entries.get(uuid);
+        if (entry != null) return entry;
+        entries.put(uuid, new Entry());
+        trim();
+        return null;
+    }
+
+    /**
+     * 保存请求的响应，header 为 null 表示没有响应；响应太大时不重新执行
+     */
+    synchronized void complete(String uuid, byte[] header, List<FramePool.Buffer> frames) {
+        complete(uuid, header, frames, false);
+    }
+
+    /**
+     * 保存请求的响应，header 为 null 表示没有响应
+     * @param rerun 响应太大时删除记录，重试时重新执行
+     */
+    synchronized void complete(String uuid, byte[] header, List<FramePool.Buffer> frames, boolean rerun) {
+        Entry entry = entries.get(uuid);
+        if (entry == null) return;
+        int bytes = header != null ? header.length : 0;
+        for (FramePool.Buffer frame : frames) {
+            bytes += frame.size();
+        }
+        entry.done = true;
+        if (bytes > MAX_ENTRY_BYTES) {
+            if (rerun) {
+                entries.remove(uuid);
+                return;
+            }
+            entry.tooLarge = true;
+            return;
+        }
+        entry.header = header;
+        entry.frames = new byte[frames.size()][];
+        for (int i = 0; i < frames.size(); i++) {
+            entry.frames[i] = Arrays.copyOf(frames.get(i).array(), frames.get(i).size());
+        }
+        entry.bytes = bytes;
+        totalBytes += bytes;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > MAX_ENTRIES || totalBytes > MAX_BYTES) && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            // 执行中的请求保留，否则完成前的重试会被再次执行
+            if (!eldest.done && entries.size() <= MAX_ENTRIES * 2) continue;
+            totalBytes -= eldest.bytes;
+            it.remove();
+        }
+    }
+}
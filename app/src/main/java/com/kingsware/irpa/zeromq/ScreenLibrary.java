@@ -0,0 +1,330 @@
+package com.kingsware.irpa.zeromq;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 已知界面库
+ * 控制端把当前界面登记为命名界面，记录帧的差值哈希和节点树的结构哈希，之后按汉明距离识别当前界面。
+ * 两种哈希各建一棵 BK 树，按距离半径查找候选，不逐个比较；候选按两种距离相对阈值的平均值排序，
+ * 两个界面的包名都已知且不同时不匹配。
+ * 界面按最近使用顺序保存，超过 MAX_SCREENS 时淘汰最久未使用的；登记和删除后在后台保存到文件，
+ * 识别命中只更新内存中的顺序，随下次保存写入。
+ */
+public class ScreenLibrary {
+    private static final String TAG = "ScreenLibrary";
+    private static final String FILE_NAME = "screens.json";
+    private static final int MAX_SCREENS = 256;
+    public static final int DEFAULT_IMAGE_DISTANCE = 10;
+    public static final int DEFAULT_TREE_DISTANCE = 6;
+
+    private final Context context;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> new Thread(r, "ScreenLibrary"));
+
+    // 访问顺序，最久未使用的在前
+    private final LinkedHashMap<String, Screen> screens = new LinkedHashMap<>(16, 0.75f, true);
+    private final HammingIndex imageIndex = new HammingIndex();
+    private final HammingIndex treeIndex = new HammingIndex();
+    private CompletableFuture<ScreenLibrary> loaded;
+
+    public ScreenLibrary(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public void stop() {
+        worker.shutdown();
+    }
+
+    /**
+     * 读取完成时完成的 future，多次调用只读取一次
+     */
+    public synchronized CompletableFuture<ScreenLibrary> load() {
+        if (loaded == null) {
+            loaded = CompletableFuture.supplyAsync(() -> {
+                restore();
+                return this;
+            }, worker);
+        }
+        return loaded;
+    }
+
+    /**
+     * 登记界面，同名界面被替换
+     * @param imageHash 帧的差值哈希，为 null 时只按结构识别
+     * @param treeHash 节点树的结构哈希，为 null 时只按图像识别
+     */
+    public synchronized Screen register(String name, Long imageHash, Long treeHash, String packageName) {
+        if (imageHash == null && treeHash == null) {
+            throw new IllegalArgumentException("no fingerprint for screen: " + name);
+        }
+        Screen screen = new Screen();
+        screen.name = name;
+        screen.imageHash = imageHash;
+        screen.treeHash = treeHash;
+        screen.packageName = packageName;
+        screen.registered = System.currentTimeMillis();
+        boolean rebuild = screens.put(name, screen) != null;
+        Iterator<Screen> it = screens.values().iterator();
+        while (screens.size() > MAX_SCREENS) {
+            Log.d(TAG, "evict " + it.next().name);
+            it.remove();
+            rebuild = true;
+        }
+        if (rebuild) {
+            rebuildIndex();
+        } else {
+            index(screen);
+        }
+        worker.execute(this::persist);
+        return screen;
+    }
+
+    /**
+     * @return 界面不存在时返回 false
+     */
+    public synchronized boolean remove(String name) {
+        if (screens.remove(name) == null) return false;
+        rebuildIndex();
+        worker.execute(this::persist);
+        return true;
+    }
+
+    public synchronized int size() {
+        return screens.size();
+    }
+
+    /**
+     * 全部界面，最近使用的在前
+     */
+    public synchronized ArrayList<Map<String, Object>> list() {
+        ArrayList<Map<String, Object>> list = new ArrayList<>(screens.size());
+        for (Screen screen : screens.values()) {
+            HashMap<String, Object> item = new HashMap<>();
+            item.put("name", screen.name);
+            item.put("imageHash", hex(screen.imageHash));
+            item.put("treeHash", hex(screen.treeHash));
+            item.put("package", screen.packageName);
+            item.put("registered", screen.registered);
+            list.add(0, item);
+        }
+        return list;
+    }
+
+    /**
+     * 查找与指纹最接近的界面
+     * @param maxImage 差值哈希的最大汉明距离
+     * @param maxTree 结构哈希的最大汉明距离
+     * @return {screen, imageDistance, treeDistance}，不可用的距离为 -1；没有匹配的界面时返回 null
+     */
+    public synchronized HashMap<String, Object> match(Long imageHash, Long treeHash, String packageName,
+                                                      int maxImage, int maxTree) {
+        List<Screen> candidates = new ArrayList<>();
+        if (imageHash != null) imageIndex.search(imageHash, maxImage, candidates);
+        if (treeHash != null) treeIndex.search(treeHash, maxTree, candidates);
+        Screen best = null;
+        float bestScore = Float.MAX_VALUE;
+        int bestImage = -1;
+        int bestTree = -1;
+        for (Screen screen : candidates) {
+            if (packageName != null && screen.packageName != null && !packageName.equals(screen.packageName)) {
+                continue;
+            }
+            int image = distance(imageHash, screen.imageHash);
+            int tree = distance(treeHash, screen.treeHash);
+            float score = 0;
+            int count = 0;
+            if (image >= 0) {
+                score += (float) image / Math.max(1, maxImage);
+                count++;
+            }
+            if (tree >= 0) {
+                score += (float) tree / Math.max(1, maxTree);
+                count++;
+            }
+            score /= count;
+            // 一种距离在阈值内、另一种远超阈值时不算匹配
+            if (score > 1 || score >= bestScore) continue;
+            best = screen;
+            bestScore = score;
+            bestImage = image;
+            bestTree = tree;
+        }
+        if (best == null) return null;
+        // 更新最近使用顺序
+        screens.get(best.name);
+        HashMap<String, Object> result = new HashMap<>();
+        result.put("screen", best.name);
+        result.put("imageDistance", bestImage);
+        result.put("treeDistance", bestTree);
+        return result;
+    }
+
+    private static int distance(Long a, Long b) {
+        return a != null && b != null ? Long.bitCount(a ^ b) : -1;
+    }
+
+    /**
+     * 哈希的 16 位十六进制表示，JSON 中的长整数在部分控制端会丢失精度
+     */
+    public static String hex(Long hash) {
+        return hash != null ? String.format("%016x", hash) : null;
+    }
+
+    public static Long parseHex(String hex) {
+        return hex != null ? Long.parseUnsignedLong(hex, 16) : null;
+    }
+
+    private void index(Screen screen) {
+        if (screen.imageHash != null) imageIndex.insert(screen.imageHash, screen);
+        if (screen.treeHash != null) treeIndex.insert(screen.treeHash, screen);
+    }
+
+    // BK 树不支持删除，替换和淘汰后整体重建
+    private void rebuildIndex() {
+        imageIndex.clear();
+        treeIndex.clear();
+        for (Screen screen : screens.values()) {
+            index(screen);
+        }
+    }
+
+    private void restore() {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) return;
+        try {
+            Stored stored = mapper.readValue(file, Stored.class);
+            synchronized (this) {
+                for (Screen screen : stored.screens) {
+                    // 读取完成前登记的界面较新，保留
+                    if (screens.containsKey(screen.name)) continue;
+                    screens.put(screen.name, screen);
+                }
+                rebuildIndex();
+            }
+            Log.i(TAG, "restore: " + screens.size() + " screens");
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Restore error: " + e.getMessage());
+        }
+    }
+
+    private void persist() {
+        Stored stored = new Stored();
+        synchronized (this) {
+            stored.screens = new ArrayList<>(screens.values());
+        }
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try {
+            mapper.writeValue(tmp, stored);
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Persist error: rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Persist error: " + e.getMessage());
+        }
+    }
+
+    public static class Screen {
+        public String name;
+        public Long imageHash;
+        public Long treeHash;
+        public String packageName;
+        public long registered;
+    }
+
+    /**
+     * 保存到文件的内容，界面按最近使用顺序排列，最久未使用的在前
+     */
+    public static class Stored {
+        public List<Screen> screens = new ArrayList<>();
+    }
+
+    /**
+     * 按汉明距离索引 64 位哈希的 BK 树
+     * 子节点按与父节点的距离分组，查找半径 r 时由三角不等式只需进入距离在 [d - r, d + r] 内的子树。
+     */
+    private static class HammingIndex {
+        private static class Node {
+            final long hash;
+            final List<Screen> screens = new ArrayList<>(1);
+            final Node[] children = new Node[65];
+
+            Node(long hash) {
+                this.hash = hash;
+            }
+        }
+
+        private Node root;
+        private final ArrayList<Node> stack = new ArrayList<>();
+
+        void clear() {
+            root = null;
+        }
+
+        void insert(long hash, Screen screen) {
+            if (root == null) {
+                root = new Node(hash);
+                root.screens.add(screen);
+                return;
+            }
+            Node node = root;
+            while (true) {
+                int d = Long.bitCount(node.hash ^ hash);
+                if (d == 0) {
+                    node.screens.add(screen);
+                    return;
+                }
+                if (node.children[d] == null) {
+                    node.children[d] = new Node(hash);
+                    node.children[d].screens.add(screen);
+                    return;
+                }
+                node = node.children[d];
+            }
+        }
+
+        /**
+         * 距离不超过 radius 的界面追加到 out，已在 out 中的不重复追加
+         */
+        void search(long hash, int radius, Collection<Screen> out) {
+            if (root == null) return;
+            stack.clear();
+            stack.add(root);
+            while (!stack.isEmpty()) {
+                Node node = stack.remove(stack.size() - 1);
+                int d = Long.bitCount(node.hash ^ hash);
+                if (d <= radius) {
+                    for (Screen screen : node.screens) {
+                        if (!containsSame(out, screen)) out.add(screen);
+                    }
+                }
+                for (int k = Math.max(1, d - radius); k <= Math.min(64, d + radius); k++) {
+                    if (node.children[k] != null) stack.add(node.children[k]);
+                }
+            }
+        }
+
+        private static boolean containsSame(Collection<Screen> screens, Screen screen) {
+            for (Screen s : screens) {
+                if (s == screen) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,905 @@
+package com.kingsware.irpa.zeromq;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 设备端脚本
+ * 控制端上传一次命名脚本，设备编译后缓存并保存到文件，之后只需传脚本名和参数即可执行。
+ * 脚本是步骤列表，每个步骤为以下之一：
+ * - 操作 {operation, 参数..., save, optional, retry, retryDelay}：经 CommandDispatcher 执行，
+ *   成败判定同 batch；save 把结果存为变量，optional 为 true 时失败不终止脚本
+ * - {if: 条件, then: [...], else: [...]}
+ * - {switch: [{when: 条件, steps: [...]}, ...], default: [...]}：执行第一个条件成立的分支
+ * - {repeat: 次数, while: 条件, until: 条件, max: 上限, index: 变量名, steps: [...]}
+ * - {sleep: 毫秒}、{set: 变量名, value: 值}、{fail: 消息}、{return: 值}
+ * 条件为一个操作（成功且结果的 count 不为 0 时成立）、{exists: 选择器}、{screen: 界面名}、
+ * {var: 变量名, equals: 值}，或用 {not: 条件}、{all: [...]}、{any: [...]} 组合。
+ * 参数中的 "${name}"、"${name.nodes.0.bounds}" 在执行时替换为变量值，整个字符串只有一个占位符时保留原类型；
+ * 不含占位符的参数在编译时确定，执行时直接复用。
+ * 脚本逐个在同一线程执行，每执行一个操作推送一次进度，结束后只响应最终结果。
+ */
+public class ScriptEngine {
+    private static final String TAG = "ScriptEngine";
+    private static final String FILE_NAME = "scripts.json";
+    private static final int MAX_SCRIPTS = 64;
+    // 一次执行最多执行的操作数，防止死循环
+    private static final int MAX_STEPS = 10000;
+    private static final int DEFAULT_LOOP_MAX = 100;
+    private static final long DEFAULT_RETRY_DELAY = 500;
+    public static final long DEFAULT_TIMEOUT = 10 * 60 * 1000;
+    // 脚本中不能执行的操作
+    private static final List<String> FORBIDDEN = Arrays.asList("run", "script", "deleteScript", "stopScript");
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{([^}]+)}");
+
+    public interface ProgressListener {
+        /**
+         * @param origin 发起执行的请求
+         * @param event {run, script, index, step, operation, status, elapsed}，失败时附带 error
+         */
+        void onProgress(Command origin, HashMap<String, Object> event);
+    }
+
+    // 为 null 时不保存到文件
+    private final Context context;
+    private final CommandDispatcher dispatcher;
+    private final ProgressListener listener;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> new Thread(r, "ScriptEngine"));
+    private final ExecutorService runner = Executors.newSingleThreadExecutor(r -> new Thread(r, "ScriptRunner"));
+
+    // 访问顺序，最久未使用的在前
+    private final LinkedHashMap<String, Script> scripts = new LinkedHashMap<>(16, 0.75f, true);
+    // 执行中和排队中的脚本，按请求的 uuid
+    private final Map<String, Run> runs = new ConcurrentHashMap<>();
+    private CompletableFuture<ScriptEngine> loaded;
+
+    public ScriptEngine(Context context, CommandDispatcher dispatcher, ProgressListener listener) {
+        this.context = context.getApplicationContext();
+        this.dispatcher = dispatcher;
+        this.listener = listener;
+    }
+
+    /**
+     * 不读写文件的脚本引擎，用于单元测试
+     */
+    ScriptEngine(CommandDispatcher dispatcher, ProgressListener listener) {
+        this.context = null;
+        this.dispatcher = dispatcher;
+        this.listener = listener;
+    }
+
+    public void stop() {
+        for (Run run : runs.values()) {
+            run.cancel();
+        }
+        runner.shutdownNow();
+        worker.shutdown();
+    }
+
+    /**
+     * 读取完成时完成的 future，多次调用只读取一次；应在操作全部注册后调用
+     */
+    public synchronized CompletableFuture<ScriptEngine> load() {
+        if (loaded == null) {
+            loaded = CompletableFuture.supplyAsync(() -> {
+                restore();
+                return this;
+            }, worker);
+        }
+        return loaded;
+    }
+
+    /**
+     * 编译并缓存脚本，同名脚本被替换；内容未变化时不重新编译
+     * @param source {steps, defaults}，defaults 为参数默认值
+     * @throws IllegalArgumentException 脚本有错误，消息中带出错步骤的位置
+     */
+    public Script put(String name, Map<String, Object> source) {
+        String hash = hash(source);
+        synchronized (this) {
+            Script script = scripts.get(name);
+            if (script != null && script.hash.equals(hash)) return script;
+        }
+        Script script = compile(name, source, hash, System.currentTimeMillis());
+        synchronized (this) {
+            scripts.put(name, script);
+            Iterator<Script> it = scripts.values().iterator();
+            while (scripts.size() > MAX_SCRIPTS) {
+                Log.d(TAG, "evict " + it.next().name);
+                it.remove();
+            }
+        }
+        worker.execute(this::persist);
+        Log.d(TAG, "script " + name + " " + hash + ", " + script.size + " steps");
+        return script;
+    }
+
+    public synchronized Script get(String name) {
+        return scripts.get(name);
+    }
+
+    /**
+     * @return 脚本不存在时返回 false
+     */
+    public boolean remove(String name) {
+        synchronized (this) {
+            if (scripts.remove(name) == null) return false;
+        }
+        worker.execute(this::persist);
+        return true;
+    }
+
+    /**
+     * 全部脚本 {name, hash, steps, updated}，最近使用的在前
+     */
+    public synchronized ArrayList<Map<String, Object>> list() {
+        ArrayList<Map<String, Object>> list = new ArrayList<>(scripts.size());
+        for (Script script : scripts.values()) {
+            HashMap<String, Object> item = new HashMap<>();
+            item.put("name", script.name);
+            item.put("hash", script.hash);
+            item.put("steps", script.size);
+            item.put("updated", script.updated);
+            list.add(0, item);
+        }
+        return list;
+    }
+
+    /**
+     * 执行脚本，前一个脚本执行完后才开始
+     * @param origin 发起执行的请求，其 uuid 为本次执行的 id，用于 cancel
+     * @param params 参数，覆盖脚本的默认值
+     * @param progress 是否推送进度
+     * @return 完成时得到 {run, script, status, steps, elapsed, result}，status 为 ok、failed、timeout 或 cancelled，
+     * 不是 ok 时附带 error 和出错步骤的位置 step
+     */
+    public CompletableFuture<HashMap<String, Object>> run(Command origin, String name, Map<String, Object> params,
+                                                          long timeout, boolean progress) {
+        Script script = get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("unknown script: " + name);
+        }
+        Run run = new Run(origin, script, params, timeout, progress);
+        if (runs.putIfAbsent(run.id, run) != null) {
+            throw new IllegalArgumentException("duplicate run: " + run.id);
+        }
+        return CompletableFuture.supplyAsync(run::execute, runner)
+                .whenComplete((result, e) -> runs.remove(run.id));
+    }
+
+    /**
+     * 取消执行中或排队中的脚本
+     * @return 没有对应的执行时返回 false
+     */
+    public boolean cancel(String runId) {
+        Run run = runs.get(runId);
+        if (run == null) return false;
+        run.cancel();
+        return true;
+    }
+
+    public static class Script {
+        public final String name;
+        public final String hash;
+        final Map<String, Object> source;
+        final Map<String, Object> defaults;
+        final Block body;
+        // 编译后的步骤总数
+        final int size;
+        final long updated;
+
+        Script(String name, String hash, Map<String, Object> source, Map<String, Object> defaults,
+               Block body, int size, long updated) {
+            this.name = name;
+            this.hash = hash;
+            this.source = source;
+            this.defaults = defaults;
+            this.body = body;
+            this.size = size;
+            this.updated = updated;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+
+    // ---- 编译 ----
+
+    private Script compile(String name, Map<String, Object> source, String hash, long updated) {
+        Object defaults = source.get("defaults");
+        if (defaults != null && !(defaults instanceof Map)) {
+            throw new IllegalArgumentException("defaults: expected object");
+        }
+        Compiler compiler = new Compiler();
+        Block body = compiler.block(source.get("steps"), "steps");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> defaultMap = defaults != null ? (Map<String, Object>) defaults : new HashMap<>();
+        return new Script(name, hash, source, defaultMap, body, compiler.size, updated);
+    }
+
+    private class Compiler {
+        int size;
+
+        Block block(Object spec, String path) {
+            if (!(spec instanceof List)) {
+                throw new IllegalArgumentException(path + ": expected step list");
+            }
+            List<?> list = (List<?>) spec;
+            Node[] nodes = new Node[list.size()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = step(list.get(i), path + "[" + i + "]");
+            }
+            return new Block(nodes);
+        }
+
+        Node step(Object spec, String path) {
+            Map<String, Object> map = object(spec, path);
+            size++;
+            if (map.containsKey("operation")) {
+                return operation(map, path);
+            } else if (map.containsKey("if")) {
+                return new IfNode(path, condition(map.get("if"), path + ".if"),
+                        block(map.get("then"), path + ".then"),
+                        map.containsKey("else") ? block(map.get("else"), path + ".else") : null);
+            } else if (map.containsKey("switch")) {
+                if (!(map.get("switch") instanceof List)) {
+                    throw new IllegalArgumentException(path + ".switch: expected case list");
+                }
+                List<?> cases = (List<?>) map.get("switch");
+                Condition[] whens = new Condition[cases.size()];
+                Block[] blocks = new Block[cases.size()];
+                for (int i = 0; i < whens.length; i++) {
+                    String casePath = path + ".switch[" + i + "]";
+                    Map<String, Object> item = object(cases.get(i), casePath);
+                    whens[i] = condition(item.get("when"), casePath + ".when");
+                    blocks[i] = block(item.get("steps"), casePath + ".steps");
+                }
+                return new SwitchNode(path, whens, blocks,
+                        map.containsKey("default") ? block(map.get("default"), path + ".default") : null);
+            } else if (map.containsKey("steps")) {
+                Object repeat = map.get("repeat");
+                return new LoopNode(path, repeat != null ? integer(repeat, path + ".repeat") : -1,
+                        map.containsKey("while") ? condition(map.get("while"), path + ".while") : null,
+                        map.containsKey("until") ? condition(map.get("until"), path + ".until") : null,
+                        map.containsKey("max") ? integer(map.get("max"), path + ".max") : DEFAULT_LOOP_MAX,
+                        (String) map.get("index"), block(map.get("steps"), path + ".steps"));
+            } else if (map.containsKey("sleep")) {
+                return new SleepNode(path, map.get("sleep"));
+            } else if (map.containsKey("set")) {
+                return new SetNode(path, String.valueOf(map.get("set")), map.get("value"));
+            } else if (map.containsKey("fail")) {
+                return new FailNode(path, map.get("fail"));
+            } else if (map.containsKey("return")) {
+                return new ReturnNode(path, map.get("return"));
+            }
+            throw new IllegalArgumentException(path + ": unknown step " + map.keySet());
+        }
+
+        OperationNode operation(Map<String, Object> map, String path) {
+            String operation = String.valueOf(map.get("operation"));
+            if (!dispatcher.has(operation) || FORBIDDEN.contains(operation)) {
+                throw new IllegalArgumentException(path + ": invalid operation: " + operation);
+            }
+            Map<String, Object> params = new LinkedHashMap<>(map);
+            Object save = params.remove("save");
+            Object optional = params.remove("optional");
+            Object retry = params.remove("retry");
+            Object retryDelay = params.remove("retryDelay");
+            return new OperationNode(path, operation, params, save != null ? save.toString() : null,
+                    Boolean.TRUE.equals(optional) || "true".equals(optional),
+                    retry != null ? integer(retry, path + ".retry") : 0,
+                    retryDelay != null ? integer(retryDelay, path + ".retryDelay") : DEFAULT_RETRY_DELAY);
+        }
+
+        Condition condition(Object spec, String path) {
+            Map<String, Object> map = object(spec, path);
+            if (map.containsKey("operation")) {
+                return new OperationCondition(operation(map, path));
+            } else if (map.containsKey("not")) {
+                Condition inner = condition(map.get("not"), path + ".not");
+                return run -> !inner.test(run);
+            } else if (map.containsKey("all") || map.containsKey("any")) {
+                boolean all = map.containsKey("all");
+                Object items = map.get(all ? "all" : "any");
+                if (!(items instanceof List)) {
+                    throw new IllegalArgumentException(path + ": expected condition list");
+                }
+                List<?> list = (List<?>) items;
+                Condition[] conditions = new Condition[list.size()];
+                for (int i = 0; i < conditions.length; i++) {
+                    conditions[i] = condition(list.get(i), path + (all ? ".all[" : ".any[") + i + "]");
+                }
+                return run -> {
+                    for (Condition condition : conditions) {
+                        if (condition.test(run) != all) return !all;
+                    }
+                    return all;
+                };
+            } else if (map.containsKey("exists")) {
+                Map<String, Object> params = new LinkedHashMap<>(object(map.get("exists"), path + ".exists"));
+                params.put("operation", "find");
+                params.put("limit", 1);
+                return new OperationCondition(operation(params, path + ".exists"));
+            } else if (map.containsKey("screen")) {
+                Map<String, Object> params = new LinkedHashMap<>(map);
+                params.put("operation", "whereAmI");
+                params.put("expect", params.remove("screen"));
+                return new OperationCondition(operation(params, path + ".screen"));
+            } else if (map.containsKey("var")) {
+                String name = String.valueOf(map.get("var"));
+                boolean compare = map.containsKey("equals");
+                Object expected = map.get("equals");
+                return run -> {
+                    Object value = run.lookup(name, false);
+                    if (compare) {
+                        Object resolved = run.resolve(expected);
+                        return Objects.equals(String.valueOf(value), String.valueOf(resolved));
+                    }
+                    return truthy(value);
+                };
+            }
+            throw new IllegalArgumentException(path + ": unknown condition " + map.keySet());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> object(Object spec, String path) {
+        if (!(spec instanceof Map)) {
+            throw new IllegalArgumentException(path + ": expected object");
+        }
+        return (Map<String, Object>) spec;
+    }
+
+    private static int integer(Object value, String path) {
+        try {
+            return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(path + ": expected number");
+        }
+    }
+
+    private static boolean truthy(Object value) {
+        if (value == null || Boolean.FALSE.equals(value)) return false;
+        if (value instanceof Number) return ((Number) value).doubleValue() != 0;
+        if (value instanceof String) return !((String) value).isEmpty() && !"false".equals(value);
+        return true;
+    }
+
+    // 参数中是否含有占位符，不含时执行时直接复用
+    private static boolean dynamic(Object value) {
+        if (value instanceof String) return ((String) value).contains("${");
+        if (value instanceof Map) {
+            for (Object item : ((Map<?, ?>) value).values()) {
+                if (dynamic(item)) return true;
+            }
+        } else if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                if (dynamic(item)) return true;
+            }
+        }
+        return false;
+    }
+
+    // ---- 执行 ----
+
+    /**
+     * 终止脚本的失败，status 为最终状态
+     */
+    private static class ScriptException extends Exception {
+        final String status;
+        final String path;
+
+        ScriptException(String status, String path, String message) {
+            super(message);
+            this.status = status;
+            this.path = path;
+        }
+    }
+
+    private interface Condition {
+        boolean test(Run run) throws Exception;
+    }
+
+    private abstract static class Node {
+        final String path;
+
+        Node(String path) {
+            this.path = path;
+        }
+
+        abstract void run(Run run) throws Exception;
+    }
+
+    private static class Block {
+        final Node[] nodes;
+
+        Block(Node[] nodes) {
+            this.nodes = nodes;
+        }
+
+        void run(Run run) throws Exception {
+            for (Node node : nodes) {
+                if (run.returned) return;
+                run.check(node.path);
+                node.run(run);
+            }
+        }
+    }
+
+    private class OperationNode extends Node {
+        final String operation;
+        final Map<String, Object> params;
+        final boolean dynamic;
+        final String save;
+        final boolean optional;
+        final int retry;
+        final long retryDelay;
+
+        OperationNode(String path, String operation, Map<String, Object> params, String save,
+                      boolean optional, int retry, long retryDelay) {
+            super(path);
+            this.operation = operation;
+            this.params = params;
+            this.dynamic = ScriptEngine.dynamic(params);
+            this.save = save;
+            this.optional = optional;
+            this.retry = retry;
+            this.retryDelay = retryDelay;
+        }
+
+        @Override
+        void run(Run run) throws Exception {
+            invoke(run);
+            if (run.error != null && !optional) {
+                throw new ScriptException("failed", path, run.error);
+            }
+        }
+
+        /**
+         * 执行操作，失败时重试；失败原因留在 run.error
+         */
+        @SuppressWarnings("unchecked")
+        Object invoke(Run run) throws Exception {
+            Object result = null;
+            for (int attempt = 0; attempt <= retry; attempt++) {
+                if (attempt > 0) run.sleep(retryDelay, path);
+                run.check(path);
+                long start = SystemClock.uptimeMillis();
+                run.error = null;
+                try {
+                    Map<String, Object> resolved = dynamic ? (Map<String, Object>) run.resolve(params) : params;
+                    // 二进制结果可能存为变量或被丢弃，缓冲在此归还
+                    result = BinaryPayload.detach(dispatcher.dispatchSync(new Command(run.origin, resolved)));
+                    run.error = CommandDispatcher.resultError(operation, result);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    run.error = String.valueOf(e.getMessage());
+                }
+                run.progress(this, SystemClock.uptimeMillis() - start);
+                if (run.error == null) break;
+            }
+            if (save != null) run.vars.put(save, result);
+            return result;
+        }
+    }
+
+    private static class OperationCondition implements Condition {
+        final OperationNode node;
+
+        OperationCondition(OperationNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public boolean test(Run run) throws Exception {
+            Object result = node.invoke(run);
+            boolean success = run.error == null;
+            run.error = null;
+            if (success && result instanceof Map) {
+                Object count = ((Map<?, ?>) result).get("count");
+                return !(count instanceof Number) || ((Number) count).intValue() > 0;
+            }
+            return success;
+        }
+    }
+
+    private static class IfNode extends Node {
+        final Condition condition;
+        final Block then;
+        final Block otherwise;
+
+        IfNode(String path, Condition condition, Block then, Block otherwise) {
+            super(path);
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        void run(Run run) throws Exception {
+            if (condition.test(run)) {
+                then.run(run);
+            } else if (otherwise != null) {
+                otherwise.run(run);
+            }
+        }
+    }
+
+    private static class SwitchNode extends Node {
+        final Condition[] whens;
+        final Block[] blocks;
+        final Block otherwise;
+
+        SwitchNode(String path, Condition[] whens, Block[] blocks, Block otherwise) {
+            super(path);
+            this.whens = whens;
+            this.blocks = blocks;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        void run(Run run) throws Exception {
+            for (int i = 0; i < whens.length; i++) {
+                if (whens[i].test(run)) {
+                    blocks[i].run(run);
+                    return;
+                }
+            }
+            if (otherwise != null) otherwise.run(run);
+        }
+    }
+
+    /**
+     * 循环：带 repeat 时最多执行 repeat 次；只有 while、until 时超过 max 次条件仍未满足算失败
+     */
+    private static class LoopNode extends Node {
+        final int repeat;
+        final Condition whileCondition;
+        final Condition untilCondition;
+        final int max;
+        final String index;
+        final Block body;
+
+        LoopNode(String path, int repeat, Condition whileCondition, Condition untilCondition, int max,
+                 String index, Block body) {
+            super(path);
+            this.repeat = repeat;
+            this.whileCondition = whileCondition;
+            this.untilCondition = untilCondition;
+            this.max = max;
+            this.index = index;
+            this.body = body;
+        }
+
+        @Override
+        void run(Run run) throws Exception {
+            int limit = repeat >= 0 ? repeat : max;
+            for (int i = 0; i < limit; i++) {
+                if (whileCondition != null && !whileCondition.test(run)) return;
+                if (index != null) run.vars.put(index, i);
+                body.run(run);
+                if (run.returned) return;
+                if (untilCondition != null && untilCondition.test(run)) return;
+            }
+            if (repeat < 0) {
+                throw new ScriptException("failed", path, "loop limit exceeded: " + max);
+            }
+        }
+    }
+
+    private static class SleepNode extends Node {
+        final Object duration;
+
+        SleepNode(String path, Object duration) {
+            super(path);
+            this.duration = duration;
+        }
+
+        @Override
+        void run(Run run) throws Exception {
+            run.sleep(integer(run.resolve(duration), path), path);
+        }
+    }
+
+    private static class SetNode extends Node {
+        final String name;
+        final Object value;
+
+        SetNode(String path, String name, Object value) {
+            super(path);
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        void run(Run run) throws Exception {
+            run.vars.put(name, run.resolve(value));
+        }
+    }
+
+    private static class FailNode extends Node {
+        final Object message;
+
+        FailNode(String path, Object message) {
+            super(path);
+            this.message = message;
+        }
+
+        @Override
+        void run(Run run) throws Exception {
+            throw new ScriptException("failed", path, String.valueOf(run.resolve(message)));
+        }
+    }
+
+    private static class ReturnNode extends Node {
+        final Object value;
+
+        ReturnNode(String path, Object value) {
+            super(path);
+            this.value = value;
+        }
+
+        @Override
+        void run(Run run) throws Exception {
+            run.result = run.resolve(value);
+            run.returned = true;
+        }
+    }
+
+    /**
+     * 一次执行的状态
+     */
+    private class Run {
+        final String id;
+        final Command origin;
+        final Script script;
+        final HashMap<String, Object> vars = new HashMap<>();
+        final long deadline;
+        final boolean progress;
+        long start;
+        int steps;
+        String error;
+        Object result;
+        boolean returned;
+        volatile boolean cancelled;
+        volatile Thread thread;
+
+        Run(Command origin, Script script, Map<String, Object> params, long timeout, boolean progress) {
+            this.id = origin.getUuid();
+            this.origin = origin;
+            this.script = script;
+            this.vars.putAll(script.defaults);
+            if (params != null) this.vars.putAll(params);
+            this.deadline = SystemClock.uptimeMillis() + (timeout > 0 ? timeout : DEFAULT_TIMEOUT);
+            this.progress = progress;
+        }
+
+        HashMap<String, Object> execute() {
+            thread = Thread.currentThread();
+            start = SystemClock.uptimeMillis();
+            HashMap<String, Object> resp = new HashMap<>();
+            resp.put("run", id);
+            resp.put("script", script.name);
+            try {
+                check("steps");
+                script.body.run(this);
+                resp.put("status", "ok");
+                resp.put("result", result);
+            } catch (ScriptException e) {
+                resp.put("status", e.status);
+                resp.put("error", e.getMessage());
+                resp.put("step", e.path);
+            } catch (InterruptedException e) {
+                resp.put("status", "cancelled");
+                resp.put("error", "cancelled");
+            } catch (Exception e) {
+                resp.put("status", "failed");
+                resp.put("error", String.valueOf(e.getMessage()));
+            } finally {
+                thread = null;
+                // 清除取消时可能残留的中断状态
+                Thread.interrupted();
+            }
+            resp.put("steps", steps);
+            resp.put("elapsed", SystemClock.uptimeMillis() - start);
+            return resp;
+        }
+
+        void cancel() {
+            cancelled = true;
+            Thread t = thread;
+            if (t != null) t.interrupt();
+        }
+
+        void check(String path) throws ScriptException {
+            if (cancelled) throw new ScriptException("cancelled", path, "cancelled");
+            if (SystemClock.uptimeMillis() > deadline) throw new ScriptException("timeout", path, "timeout");
+        }
+
+        void sleep(long duration, String path) throws Exception {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (duration > remaining) {
+                Thread.sleep(Math.max(0, remaining));
+                throw new ScriptException("timeout", path, "timeout");
+            }
+            Thread.sleep(duration);
+        }
+
+        void progress(OperationNode node, long elapsed) throws ScriptException {
+            if (++steps > MAX_STEPS) {
+                throw new ScriptException("failed", node.path, "step limit exceeded: " + MAX_STEPS);
+            }
+            if (!progress || listener == null) return;
+            HashMap<String, Object> event = new HashMap<>();
+            event.put("run", id);
+            event.put("script", script.name);
+            event.put("index", steps);
+            event.put("step", node.path);
+            event.put("operation", node.operation);
+            event.put("status", error == null ? "ok" : "error");
+            if (error != null) event.put("error", error);
+            event.put("elapsed", elapsed);
+            listener.onProgress(origin, event);
+        }
+
+        /**
+         * 替换值中的占位符，Map 和 List 逐项替换后返回新的对象
+         */
+        Object resolve(Object value) {
+            if (value instanceof String) {
+                String text = (String) value;
+                if (!text.contains("${")) return text;
+                Matcher matcher = PLACEHOLDER.matcher(text);
+                if (matcher.matches()) return lookup(matcher.group(1), true);
+                StringBuffer buffer = new StringBuffer();
+                while (matcher.find()) {
+                    matcher.appendReplacement(buffer, Matcher.quoteReplacement(String.valueOf(lookup(matcher.group(1), true))));
+                }
+                matcher.appendTail(buffer);
+                return buffer.toString();
+            } else if (value instanceof Map) {
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    map.put(String.valueOf(entry.getKey()), resolve(entry.getValue()));
+                }
+                return map;
+            } else if (value instanceof List) {
+                List<Object> list = new ArrayList<>();
+                for (Object item : (List<?>) value) {
+                    list.add(resolve(item));
+                }
+                return list;
+            }
+            return value;
+        }
+
+        /**
+         * 按 a.b.0.c 的路径取变量值
+         * @param required 为 true 时变量不存在抛出异常，否则返回 null
+         */
+        Object lookup(String path, boolean required) {
+            String[] parts = path.split("\\.");
+            if (!vars.containsKey(parts[0])) {
+                if (required) throw new IllegalArgumentException("undefined variable: " + parts[0]);
+                return null;
+            }
+            Object value = vars.get(parts[0]);
+            for (int i = 1; i < parts.length && value != null; i++) {
+                if (value instanceof Map) {
+                    value = ((Map<?, ?>) value).get(parts[i]);
+                } else if (value instanceof List) {
+                    List<?> list = (List<?>) value;
+                    int index = integer(parts[i], path);
+                    value = index >= 0 && index < list.size() ? list.get(index) : null;
+                } else {
+                    value = null;
+                }
+            }
+            return value;
+        }
+    }
+
+    // ---- 保存 ----
+
+    private void restore() {
+        if (context == null) return;
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) return;
+        try {
+            Stored stored = mapper.readValue(file, Stored.class);
+            int count = 0;
+            for (StoredScript item : stored.scripts) {
+                try {
+                    Script script = compile(item.name, item.source, hash(item.source), item.updated);
+                    synchronized (this) {
+                        // 读取完成前上传的脚本较新，保留
+                        if (scripts.containsKey(item.name)) continue;
+                        scripts.put(item.name, script);
+                    }
+                    count++;
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Restore " + item.name + " error: " + e.getMessage());
+                }
+            }
+            Log.i(TAG, "restore: " + count + " scripts");
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Restore error: " + e.getMessage());
+        }
+    }
+
+    private void persist() {
+        if (context == null) return;
+        Stored stored = new Stored();
+        synchronized (this) {
+            for (Script script : scripts.values()) {
+                StoredScript item = new StoredScript();
+                item.name = script.name;
+                item.source = script.source;
+                item.updated = script.updated;
+                stored.scripts.add(item);
+            }
+        }
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tmp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try {
+            mapper.writeValue(tmp, stored);
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Persist error: rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Persist error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 保存到文件的内容，脚本按最近使用顺序排列，最久未使用的在前
+     */
+    public static class Stored {
+        public List<StoredScript> scripts = new ArrayList<>();
+    }
+
+    public static class StoredScript {
+        public String name;
+        public Map<String, Object> source;
+        public long updated;
+    }
+
+    private String hash(Map<String, Object> source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(mapper.writeValueAsBytes(source));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
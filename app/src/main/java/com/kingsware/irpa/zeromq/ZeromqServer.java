@@ -1,110 +1,544 @@
 package com.kingsware.irpa.zeromq;
-import android.annotation.SuppressLint;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kingsware.irpa.automation.FramePool;
 
 import org.zeromq.ZMQ;
 
-import java.io.Serializable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
+/**
+ * ZeroMQ 通信
+ * 地址可以用逗号分隔多个，每个地址是一个 Endpoint：普通地址用 DEALER 连接，
+ * "bind:" 开头的地址用 ROUTER 监听。所有 socket 只由 I/O 线程（run）在同一个 poller 上读写：
+ * 收到的请求解析为 Command，控制操作和批量操作分别交给两个线程池通过 CommandDispatcher 执行，
+ * 响应、推送放入发送队列，通过 inproc 唤醒 I/O 线程，按请求来源的端点发出。
+ * 响应按请求的 uuid 对应，多个请求可以同时执行、乱序返回。
+ * 消息编码见 MessageCodec。
+ *
+ * 心跳由 I/O 线程发送：端点有消息发出时推迟心跳，空闲时间隔逐步加倍到 HEARTBEAT_MAX，
+ * 收到请求后恢复为 HEARTBEAT_MIN；繁忙时至少每 HEARTBEAT_MAX 发送一次，带上负载信息。
+ * socket 启用 ZMTP 心跳，对端无响应时断开，通过 monitor 感知连接状态，
+ * 断开超过 RECONNECT_AFTER 仍未恢复时重建 socket。
+ *
+ * 断开期间待发送的消息保留在端点的通道中（屏幕帧直接丢弃），重新连接后发出；
+ * 已经写入连接但对端没有收到的响应由客户端用相同 uuid 重试，
+ * 通过 ResponseCache 重发缓存的响应，不会重复执行。
+ */
 public class ZeromqServer implements Runnable {
     private static final String TAG = "ZeroMQServer";
-    private final Handler msgHandler;
-    final ObjectMapper mapper = new ObjectMapper();
-    ZMQ.Socket socket;
+    public static final int DEFAULT_PARALLELISM = 4;
+    // 控制操作的执行线程数
+    private static final int CONTROL_PARALLELISM = 2;
+    private static final String WAKE_ADDRESS = "inproc://zeromq-wake";
+    private static final long HEARTBEAT_MIN = 3000;
+    private static final long HEARTBEAT_MAX = 15000;
+    private static final long RECONNECT_AFTER = 30000;
+    // 发送受阻时重试的间隔
+    private static final long RETRY_INTERVAL = 10;
+
+    public static final String OPERATE_ERROR = "Operate ERROR!";
+    public static final String RESPONSE_TOO_LARGE = "Response too large, not replayable";
+
+    private final CommandDispatcher dispatcher;
+    private final MessageCodec codec = new MessageCodec();
+    // 主动推送和心跳使用的编码
+    private volatile String pushCodec = MessageCodec.JSON;
+    private final String agentId;
     ZMQ.Context context;
+    // 端点只在 I/O 线程使用
+    private final List<Endpoint> endpoints;
+    private final ZMQ.Socket wakeReceiver;
+    // 其他线程发送唤醒信号，使用时加锁
+    private final ZMQ.Socket wakeSender;
+    private final AtomicBoolean wakePending = new AtomicBoolean();
+    private boolean wakeClosed;
 
-    @SuppressLint("HandlerLeak")
-    private final Handler resHandler = new Handler() {
+    private final ConcurrentLinkedQueue<Outgoing> outgoing = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ResponseCache responses = new ResponseCache();
+    private final ThreadPoolExecutor controlExecutor;
+    private final ThreadPoolExecutor bulkExecutor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean running = true;
 
-        public void handleMessage(@NonNull Message message) {
-            Log.d(TAG, "Received message: " + message.getData());
-            try {
-                Serializable msg = (Serializable)message.getData().get("message");
-                Log.d(TAG, "message: " + msg);
-                if ( msg != null) {
-                    MqMessage<Serializable> mqMsg= new MqMessage<Serializable>(message.getData().getString("uuid"),MqMessage.OPERATION, msg);
-                    String response = mapper.writeValueAsString(mqMsg);
-                    Log.d(TAG, "Send response: " + response);
-                    socket.send(response.getBytes(ZMQ.CHARSET), 0);
-                }
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
-            }
-        }
-    };
-    public static Message bundledMessage(Handler handler, MqMessage<HashMap<String,String>> msg) {
-        Message m = handler.obtainMessage();
-        Bundle data = new Bundle();
-        data.putString("uuid",msg.getUuid());
-        data.putSerializable("message", msg.getMessage());
-        m.setData(data);
-        m.setTarget(handler);
-        return m;
-    };
-    public ZeromqServer(String agentId, String addr, Handler msgHandler) {
-        this.msgHandler = msgHandler;
+    // 心跳计时，只在 I/O 线程修改
+    private long heartbeatInterval = HEARTBEAT_MIN;
+    private boolean active;
+    private volatile int connectedCount;
+    private final long startTime = SystemClock.uptimeMillis();
+    private volatile Supplier<Map<String, Object>> healthProvider;
+
+    public ZeromqServer(String agentId, String addr, CommandDispatcher dispatcher) {
+        this(agentId, addr, dispatcher, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param addr 逗号分隔的地址，"bind:" 开头的地址以 ROUTER 模式监听
+     * @param parallelism 同时执行的批量操作数上限
+     */
+    public ZeromqServer(String agentId, String addr, CommandDispatcher dispatcher, int parallelism) {
+        this.dispatcher = dispatcher;
+        this.agentId = agentId;
         context = ZMQ.context(1);
-        socket = context.socket(ZMQ.DEALER);
-        socket.setIdentity(agentId.getBytes(ZMQ.CHARSET));
-        Log.d(TAG, "Mq connect:"+addr);
-        socket.connect(addr);
-
-        TimerTask heartbeat = new TimerTask() {
-            final ObjectMapper mapper = new ObjectMapper();
-            @Override
-            public void run() {
-                try {
-                    Log.d(TAG, "Send heartbeat.......");
-                    Map<String, String> message = new HashMap<>();
-                    message.put("agent",agentId);
-                    message.put("status","on");
-                    String heartbeatMessage = mapper.writeValueAsString(new MqMessage<Map<String, String>>(MqMessage.HEARTBEAT, message));
-                    Log.d(TAG, "Send "+heartbeatMessage);
-                    socket.send(heartbeatMessage.getBytes(ZMQ.CHARSET), 0);
-                } catch (JsonProcessingException e) {
-                    throw new RuntimeException(e);
+        endpoints = Endpoint.parse(addr);
+        for (Endpoint endpoint : endpoints) {
+            endpoint.open(context, agentId);
+        }
+
+        wakeReceiver = context.socket(ZMQ.PULL);
+        wakeReceiver.bind(WAKE_ADDRESS);
+        wakeSender = context.socket(ZMQ.PUSH);
+        wakeSender.setLinger(0);
+        wakeSender.connect(WAKE_ADDRESS);
+
+        controlExecutor = executor("ZeromqControl-", CONTROL_PARALLELISM);
+        bulkExecutor = executor("ZeromqWorker-", parallelism);
+    }
+
+    private static ThreadPoolExecutor executor(String name, int threads) {
+        AtomicInteger workerCount = new AtomicInteger();
+        return new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads),
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, name + workerCount.incrementAndGet()));
+    }
+
+    /**
+     * 设置心跳附带的额外负载信息，在 I/O 线程调用，需要快速返回
+     */
+    public void setHealthProvider(Supplier<Map<String, Object>> healthProvider) {
+        this.healthProvider = healthProvider;
+    }
+
+    public boolean isConnected() {
+        return connectedCount > 0;
+    }
+
+    /**
+     * 向发出 origin 请求的控制端推送消息，消息头之后依次附带二进制帧，帧在发送后归还
+     * 屏幕帧和 dump 的分块按批量消息发送，屏幕帧断开时丢弃
+     */
+    public void push(Command origin, String type, Object message, List<FramePool.Buffer> frames) {
+        try {
+            byte[] header = codec.encode(new MqMessage<Object>(type, message), pushCodec);
+            boolean frame = MqMessage.FRAME.equals(type);
+            boolean bulk = frame || MqMessage.CHUNK.equals(type);
+            enqueue(new Outgoing(origin.endpoint, origin.peer, header, frames, new byte[0][], bulk, frame));
+        } catch (JsonProcessingException e) {
+            Log.e(TAG, "Push error: " + e.getMessage());
+            Outgoing.release(frames);
+        }
+    }
+
+    /**
+     * 向所有端点的控制端推送消息
+     */
+    public void push(String type, Object message) {
+        try {
+            byte[] header = codec.encode(new MqMessage<Object>(type, message), pushCodec);
+            enqueue(new Outgoing(null, null, header, new byte[0][], false));
+        } catch (JsonProcessingException e) {
+            Log.e(TAG, "Push error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 设置主动推送和心跳的编码
+     * @return 编码不支持时返回 false
+     */
+    public boolean setCodec(String name) {
+        if (!MessageCodec.isSupported(name)) return false;
+        pushCodec = name;
+        return true;
+    }
+
+    public String getCodec() {
+        return pushCodec;
+    }
+
+    /**
+     * 正在执行或等待异步结果的请求数
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * 停止 I/O 线程和线程池，socket 在 I/O 线程退出时关闭
+     */
+    public void stop() {
+        running = false;
+        controlExecutor.shutdownNow();
+        bulkExecutor.shutdownNow();
+        wake();
+    }
+
+    private void enqueue(Outgoing message) {
+        if (!running) {
+            message.release();
+            return;
+        }
+        outgoing.add(message);
+        queued.incrementAndGet();
+        wake();
+    }
+
+    private void wake() {
+        // 已有未处理的唤醒信号时不再重复发送
+        if (wakePending.compareAndSet(false, true)) {
+            synchronized (wakeSender) {
+                if (!wakeClosed) {
+                    wakeSender.send(new byte[0], ZMQ.DONTWAIT);
                 }
             }
-        };
-        Timer timer = new Timer("Heartbeat");
-        timer.schedule(heartbeat, 30, 3000);
+        }
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        socket.close();
-        context.term();
+    private ZMQ.Poller poller() {
+        ZMQ.Poller poller = context.poller(endpoints.size() * 2 + 1);
+        poller.register(wakeReceiver, ZMQ.Poller.POLLIN);
+        for (Endpoint endpoint : endpoints) {
+            endpoint.socketIndex = poller.register(endpoint.socket, ZMQ.Poller.POLLIN);
+            endpoint.monitorIndex = endpoint.monitor != null ? poller.register(endpoint.monitor, ZMQ.Poller.POLLIN) : -1;
+        }
+        return poller;
     }
 
     @Override
     public void run() {
-        while(!Thread.currentThread().isInterrupted()) {
-            Log.d(TAG, "recv..............");
-            byte[] message = socket.recv(0);
-            if (message != null) {
-                String receivedMessage = new String(message, ZMQ.CHARSET);
-                Log.d(TAG, "recv:"+receivedMessage);
-                try {
-                    MqMessage<HashMap<String,String>> msg = mapper.readValue(receivedMessage, new TypeReference<MqMessage<HashMap<String,String>>>() {});
-                    msgHandler.handleMessage(bundledMessage(resHandler, msg));
-                } catch (JsonProcessingException e) {
-                    throw new RuntimeException(e);
+        ZMQ.Poller poller = poller();
+        int wakeIndex = 0;
+        while (running && !Thread.currentThread().isInterrupted()) {
+            long now = SystemClock.uptimeMillis();
+            long deadline = Long.MAX_VALUE;
+            for (Endpoint endpoint : endpoints) {
+                deadline = Math.min(deadline, nextHeartbeat(endpoint));
+                if (!endpoint.connected) {
+                    deadline = Math.min(deadline, endpoint.disconnectedAt + RECONNECT_AFTER);
+                } else if (endpoint.hasBacklog()) {
+                    deadline = Math.min(deadline, now + RETRY_INTERVAL);
+                }
+            }
+            if (poller.poll(Math.max(0, deadline - now)) < 0) break;
+            if (poller.pollin(wakeIndex)) {
+                // 先清除标记再取队列，避免漏掉清除之后加入的消息
+                wakePending.set(false);
+                while (wakeReceiver.recv(ZMQ.DONTWAIT) != null) {
+                    // 丢弃唤醒信号
+                }
+            }
+            boolean reopened = false;
+            int connected = 0;
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.monitorIndex >= 0 && poller.pollin(endpoint.monitorIndex) && endpoint.monitorEvents()) {
+                    // 连接后立即发送心跳登记
+                    heartbeatInterval = HEARTBEAT_MIN;
+                    endpoint.lastSent = 0;
+                    endpoint.lastHeartbeat = 0;
+                }
+                if (poller.pollin(endpoint.socketIndex)) {
+                    receiveAll(endpoint);
+                }
+                if (endpoint.connected) connected++;
+            }
+            connectedCount = connected;
+            distribute();
+            now = SystemClock.uptimeMillis();
+            boolean heartbeat = false;
+            for (Endpoint endpoint : endpoints) {
+                flush(endpoint);
+                if (now >= nextHeartbeat(endpoint)) {
+                    heartbeat(endpoint, now);
+                    heartbeat = true;
+                }
+                if (!endpoint.connected && now - endpoint.disconnectedAt >= RECONNECT_AFTER) {
+                    Log.w(TAG, "Disconnected for " + (now - endpoint.disconnectedAt) + "ms, reconnect " + endpoint.address);
+                    endpoint.close();
+                    endpoint.open(context, agentId);
+                    reopened = true;
+                }
+            }
+            if (heartbeat) {
+                // 有请求时保持最短间隔，空闲时逐步加倍
+                heartbeatInterval = active ? HEARTBEAT_MIN : Math.min(heartbeatInterval * 2, HEARTBEAT_MAX);
+                active = false;
+            }
+            if (reopened) {
+                poller.close();
+                poller = poller();
+            }
+        }
+        poller.close();
+        close();
+    }
+
+    /**
+     * 下次心跳的时间：距上次发出消息 heartbeatInterval，且距上次心跳不超过 HEARTBEAT_MAX
+     */
+    private long nextHeartbeat(Endpoint endpoint) {
+        return Math.min(endpoint.lastSent + heartbeatInterval, endpoint.lastHeartbeat + HEARTBEAT_MAX);
+    }
+
+    private void receiveAll(Endpoint endpoint) {
+        byte[] message;
+        while ((message = endpoint.recv()) != null) {
+            active = true;
+            dispatch(endpoint, endpoint.receivedPeer, message);
+        }
+    }
+
+    /**
+     * 在 I/O 线程解析请求，按操作类型交给控制或批量线程池
+     */
+    private void dispatch(Endpoint endpoint, byte[] peer, byte[] message) {
+        Command command;
+        try {
+            String requestCodec = MessageCodec.detect(message);
+            MqMessage<HashMap<String,Object>> msg = codec.decode(message, requestCodec);
+            HashMap<String,Object> params = msg.getMessage() != null ? msg.getMessage() : new HashMap<>();
+            command = new Command(msg.getUuid(), requestCodec, params, endpoint, peer);
+        } catch (IOException e) {
+            Log.e(TAG, "Invalid message: " + e.getMessage());
+            return;
+        }
+        Log.d(TAG, "recv(" + command.getCodec() + "):" + command);
+        inFlight.incrementAndGet();
+        ThreadPoolExecutor executor = dispatcher.isBulk(command.getOperation()) ? bulkExecutor : controlExecutor;
+        try {
+            executor.execute(() -> {
+                ResponseCache.Entry cached = responses.begin(command.getUuid());
+                if (cached != null) {
+                    inFlight.decrementAndGet();
+                    replay(command, cached);
+                    return;
+                }
+                execute(command);
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            Log.w(TAG, "Server stopped, message dropped");
+        }
+    }
+
+    /**
+     * 执行请求并响应，异步结果在完成时响应
+     */
+    private void execute(Command command) {
+        Object result;
+        try {
+            result = dispatcher.dispatch(command);
+        } catch (Exception e) {
+            Log.e(TAG, "Operate error: " + e.getMessage());
+            result = OPERATE_ERROR;
+        }
+        if (result instanceof CompletableFuture) {
+            ((CompletableFuture<?>) result).whenComplete((value, error) -> {
+                if (error != null) {
+                    Log.e(TAG, "Operate error: " + error.getMessage());
+                }
+                reply(command, error != null ? OPERATE_ERROR : value);
+                inFlight.decrementAndGet();
+            });
+        } else {
+            reply(command, result);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * 重复的请求：执行中的忽略，已完成的重发缓存的响应
+     */
+    private void replay(Command command, ResponseCache.Entry cached) {
+        byte[] header;
+        byte[][] frames;
+        boolean tooLarge;
+        synchronized (responses) {
+            if (!cached.done) {
+                Log.d(TAG, "Duplicate request in progress: " + command.getUuid());
+                return;
+            }
+            header = cached.header;
+            frames = cached.frames;
+            tooLarge = cached.tooLarge;
+        }
+        if (tooLarge) {
+            // 带副作用的请求响应没有保存，回复错误而不重新执行
+            Log.d(TAG, "Duplicate request, response not cached: " + command.getUuid());
+            try {
+                header = codec.encode(new MqMessage<Object>(command.getUuid(), MqMessage.OPERATION, RESPONSE_TOO_LARGE),
+                        command.getCodec());
+                frames = new byte[0][];
+            } catch (JsonProcessingException e) {
+                Log.e(TAG, "Response error: " + e.getMessage());
+                return;
+            }
+        } else {
+            Log.d(TAG, "Duplicate request, resend response: " + command.getUuid());
+        }
+        if (header != null) {
+            enqueue(new Outgoing(command.endpoint, command.peer, header, frames,
+                    dispatcher.isBulk(command.getOperation())));
+        }
+    }
+
+    /**
+     * 按请求的 uuid 和编码向请求来源发送响应，结果为 null（服务不可用）时不响应
+     * BinaryPayload 的消息头和各段二进制数据分帧发送
+     */
+    private void reply(Command command, Object result) {
+        if (result == null) {
+            responses.complete(command.getUuid(), null, Collections.<FramePool.Buffer>emptyList());
+            return;
+        }
+        Object message = result;
+        List<FramePool.Buffer> frames = Collections.emptyList();
+        if (result instanceof BinaryPayload) {
+            BinaryPayload payload = (BinaryPayload) result;
+            message = payload.getHeader();
+            frames = payload.getBuffers();
+        }
+        try {
+            byte[] response = codec.encode(new MqMessage<Object>(command.getUuid(), MqMessage.OPERATION, message), command.getCodec());
+            Log.d(TAG, "Send response: " + command.getUuid() + " (" + command.getCodec() + ", " + response.length + " bytes)");
+            responses.complete(command.getUuid(), response, frames, !dispatcher.hasSideEffects(command.getOperation()));
+            enqueue(new Outgoing(command.endpoint, command.peer, response, frames,
+                    dispatcher.isBulk(command.getOperation())));
+        } catch (JsonProcessingException e) {
+            Log.e(TAG, "Response error: " + e.getMessage());
+            Outgoing.release(frames);
+        }
+    }
+
+    private void heartbeat(Endpoint endpoint, long now) {
+        try {
+            Map<String, Object> message = new HashMap<>();
+            message.put("agent",agentId);
+            message.put("status","on");
+            // 告知对端可用的编码，对端通过 codec 操作选择
+            message.put("codecs", MessageCodec.SUPPORTED);
+            message.put("codec", pushCodec);
+            // 对端超过该时间没有收到任何消息可以认为设备离线
+            message.put("interval", HEARTBEAT_MAX);
+            message.put("health", health());
+            Log.d(TAG, "Send heartbeat: "+message);
+            byte[] heartbeatMessage = codec.encode(new MqMessage<Map<String, Object>>(MqMessage.HEARTBEAT, message), pushCodec);
+            // 发送不了时跳过本次心跳，不阻塞 I/O 线程
+            if (endpoint.sendNow(heartbeatMessage)) {
+                endpoint.lastSent = now;
+            }
+        } catch (JsonProcessingException e) {
+            Log.e(TAG, "Heartbeat error: " + e.getMessage());
+        }
+        endpoint.lastHeartbeat = now;
+    }
+
+    /**
+     * 负载信息：等待执行的请求数、执行中的请求数、待发送的消息数、已连接的端点数，
+     * 以及 healthProvider 提供的内容
+     */
+    private HashMap<String, Object> health() {
+        HashMap<String, Object> health = new HashMap<>();
+        health.put("queue", controlExecutor.getQueue().size() + bulkExecutor.getQueue().size());
+        health.put("inFlight", inFlight.get());
+        health.put("outgoing", queued.get());
+        health.put("endpoints", connectedCount);
+        health.put("uptime", (SystemClock.uptimeMillis() - startTime) / 1000);
+        Supplier<Map<String, Object>> provider = healthProvider;
+        if (provider != null) {
+            health.putAll(provider.get());
+        }
+        return health;
+    }
+
+    /**
+     * 将新消息分配到端点的通道，广播消息复制到每个端点和对端
+     */
+    private void distribute() {
+        Outgoing message;
+        while ((message = outgoing.poll()) != null) {
+            if (endpoints.isEmpty()) {
+                discard(message);
+                continue;
+            }
+            if (message.endpoint != null) {
+                add(message.endpoint, message);
+                continue;
+            }
+            if (!message.frames.isEmpty()) {
+                // 来源未知且带缓冲帧的消息发往第一个端点
+                add(endpoints.get(0), message);
+                continue;
+            }
+            // 广播消息不带缓冲帧，可以共享消息头
+            queued.decrementAndGet();
+            for (Endpoint endpoint : endpoints) {
+                for (byte[] peer : endpoint.broadcastPeers()) {
+                    queued.incrementAndGet();
+                    add(endpoint, new Outgoing(endpoint, peer, message.header, message.cached, message.bulk));
                 }
             }
         }
     }
+
+    private void add(Endpoint endpoint, Outgoing message) {
+        Outgoing dropped = endpoint.add(message);
+        if (dropped != null) {
+            discard(dropped);
+        }
+    }
+
+    /**
+     * 按通道优先级发出端点积压的消息，发送受阻的消息留到下次
+     */
+    private void flush(Endpoint endpoint) {
+        Outgoing message;
+        while (endpoint.connected && (message = endpoint.peek()) != null) {
+            if (!endpoint.send(message)) break;
+            endpoint.remove(message);
+            discard(message);
+            endpoint.lastSent = SystemClock.uptimeMillis();
+        }
+    }
+
+    private void discard(Outgoing message) {
+        queued.decrementAndGet();
+        message.release();
+    }
+
+    private void close() {
+        Outgoing message;
+        while ((message = outgoing.poll()) != null) {
+            discard(message);
+        }
+        List<Outgoing> pending = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            endpoint.drain(pending);
+            endpoint.close();
+        }
+        for (Outgoing m : pending) {
+            discard(m);
+        }
+        wakeReceiver.close();
+        synchronized (wakeSender) {
+            wakeClosed = true;
+            wakeSender.close();
+        }
+        context.term();
+    }
 }
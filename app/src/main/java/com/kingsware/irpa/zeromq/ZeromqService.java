@@ -1,53 +1,72 @@
 package com.kingsware.irpa.zeromq;
 
-import android.annotation.SuppressLint;
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.os.Binder;
-import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
+import android.os.SystemClock;
+import android.util.Base64;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kingsware.irpa.R;
 import com.kingsware.irpa.automation.AutoAccessibilityService;
+import com.kingsware.irpa.automation.CaptureOptions;
+import com.kingsware.irpa.automation.FramePool;
+import com.kingsware.irpa.automation.FrameStreamer;
+import com.kingsware.irpa.automation.Gesture;
+import com.kingsware.irpa.automation.GrayImage;
+import com.kingsware.irpa.automation.NodeScope;
+import com.kingsware.irpa.automation.NodeSelector;
+import com.kingsware.irpa.automation.PageWaiter;
+import com.kingsware.irpa.automation.PixelProbe;
 import com.kingsware.irpa.automation.ScreenCaptureService;
+import com.kingsware.irpa.automation.TemplateMatcher;
+import com.kingsware.irpa.automation.TreeDump;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ZeromqService extends Service {
     private static final String TAG = "ZeromqService";
     private static final String PREFS_NAME = "ZeromqPrefs";
     private static final String KEY_SERVER_ADDRESS = "server_address";
-    final ObjectMapper mapper = new ObjectMapper();
+    private static final String KEY_PARALLELISM = "parallelism";
+    private static final TypeReference<List<Integer>> INT_LIST = new TypeReference<List<Integer>>() {};
 
     String agentId = "agent_"+UUID.randomUUID().toString();
-    
-    ArrayList<Map<String,String>> appList=new ArrayList<>();
 
-    private ScreenCaptureService screenCaptureService=null;
+    private AppInventory appInventory;
+    private ScreenLibrary screenLibrary;
+    private ScriptEngine scriptEngine;
+    private final TemplateMatcher templateMatcher = new TemplateMatcher();
+    // 界面切换推送，未开启时为 null
+    private ScheduledExecutorService screenWatcher;
+    private String watchedScreen;
+    private Long watchedImageHash;
+    private Long watchedTreeHash;
+
+    private volatile ScreenCaptureService screenCaptureService=null;
+    private ZeromqServer server;
 
-    private MessageDisplayer messageDisplayer = null;
-    private AutoAccessibilityService autoAccessibilityService=null;
+    private volatile MessageDisplayer messageDisplayer = null;
+    private volatile AutoAccessibilityService autoAccessibilityService=null;
 
     public void setAutoAccessibilityService(AutoAccessibilityService autoAccessibilityService) {
         this.autoAccessibilityService = autoAccessibilityService;
@@ -77,136 +96,855 @@ public class ZeromqService extends Service {
         }
     };
 
-    @SuppressLint("HandlerLeak")
-    private final Handler msgHandler = new Handler() {
-        public void handleMessage(@NonNull Message message) {
-            Log.i(TAG, "Received message: "+message.getData());
-            String uuid = message.getData().getString("uuid");
-            Map<String,String> msg = (Map<String,String>)message.getData().getSerializable("message");
-            if(msg!=null && msg.containsKey("operation")) {
-                Message m = this.obtainMessage();
-                Bundle data = new Bundle();
-                data.putString("uuid",uuid);
-                switch(Objects.requireNonNull(msg.get("operation"))){
-                    case "apps":
-                        data.putSerializable("message", appList);
-                        break;
-                    case "start":
-                        String startPackageName = msg.get("packageName");
-                        Log.d(TAG, "start: "+startPackageName+":");
-                        if(autoAccessibilityService!=null) {
-                            autoAccessibilityService.launchApp(startPackageName);
-                        }
-                        data.putSerializable("message", "start fin");
-                        break;
-                    case "goto":
-                        String targetPackageName = msg.get("packageName");
-                        String targetActivityName = msg.get("activityName");
-                        Log.d(TAG, "start: "+targetPackageName+":"+targetActivityName);
-                        if(autoAccessibilityService!=null) {
-                            autoAccessibilityService.launchActivity(targetPackageName, targetActivityName);
-                        }
-                        data.putSerializable("message", "start fin");
-                        break;
-                    case "stop":
-                        String staopPackageName = msg.get("packageName");
-                        if(autoAccessibilityService!=null) {
-                            autoAccessibilityService.stopApp(staopPackageName);
-                        }
-                        data.putSerializable("message", "stop fin");
-                        break;
-                    case "display":
-                        if(messageDisplayer!=null){
-                            if(msg.containsKey("text")) {
-                                String text = msg.get("text");
-
-                                if (msg.containsKey("duration")) {
-                                    int duration = Integer.parseInt(msg.get("duration"));
-                                    messageDisplayer.displayMessage(text, duration);
-                                } else {
-                                    messageDisplayer.displayMessage(text);
-                                }
-                            }
-                        }
-                        data.putSerializable("message", "display fin");
-                    case "screenshot":
-                        String base64="";
-                        if(screenCaptureService!=null) {
-                            base64 = screenCaptureService.screenshot();
-                        }
-                        data.putSerializable("message", base64);
-                        break;
-                    case "click":
-                        String rectStr = msg.get("rect");
-                        if(autoAccessibilityService!=null) {
-                            try {
-                                List<Integer> listRect =  mapper.readValue(rectStr, new TypeReference<List<Integer>>() {});
-                                Rect rect = new Rect();
-                                rect.set(listRect.get(0),listRect.get(1),listRect.get(2),listRect.get(3));
-                                autoAccessibilityService.click(rect);
-                                data.putSerializable("message", "Operate fin!");
-                            } catch (JsonProcessingException e) {
-                                data.putSerializable("message", "Operate ERROR!");
-                            }
-                        }
-                        break;
-                    case "swipe":
-                        if(autoAccessibilityService!=null) {
-                            try {
-                                int swipeType = Integer.parseInt(msg.get("type"));
-                                autoAccessibilityService.swipe(swipeType);
-                                data.putSerializable("message", "Operate fin!");
-                            } catch (Exception e) {
-                                data.putSerializable("message", "Operate ERROR!");
-                            }
-                        }
-                        break;
-                    default:
-                        break;
+    private final CommandDispatcher dispatcher = new CommandDispatcher();
+
+    /**
+     * 注册各操作的处理器，处理器返回 null 表示对应服务不可用
+     */
+    private void registerCommands() {
+        dispatcher.register("start", this::startApp)
+                .register("goto", this::gotoActivity)
+                .register("stop", this::stopApp)
+                .register("display", this::display)
+                .register("click", this::click)
+                .register("swipe", this::swipe)
+                .register("gesture", this::gesture)
+                .register("find", this::find)
+                .register("probe", this::probe)
+                .register("whereAmI", this::whereAmI)
+                .register("registerScreen", this::registerScreen)
+                .register("forgetScreen", this::forgetScreen)
+                .register("screens", this::screens)
+                .register("watchScreen", this::watchScreen)
+                .register("script", this::script)
+                .register("run", this::run)
+                .register("stopScript", this::stopScript)
+                .register("scripts", this::scripts)
+                .register("deleteScript", this::deleteScript)
+                .register("record", this::record)
+                .register("wait", this::waitStable)
+                .register("stream", this::stream)
+                .register("codec", this::codec);
+        // 传输量大或耗时长的操作，与控制操作分开排队
+        dispatcher.registerBulk("apps", this::apps)
+                .registerBulk("screenshot", this::screenshot)
+                .registerBulk("treediff", this::treeDiff)
+                .registerBulk("scrollTo", this::scrollTo)
+                .registerBulk("dump", this::dump)
+                .registerBulk("template", this::template)
+                .registerBulk("locate", this::locate)
+                .registerBulk("batch", this::batch);
+        dispatcher.sideEffects("batch", "run", "script", "record");
+    }
+
+    /**
+     * 应用清单，首次查询时等待加载完成
+     * 不带参数时返回完整列表；带 since、launchable、prefix、offset、limit 任一参数时返回
+     * {version, total, offset, apps}，since 为上次响应的 version，只返回之后变化的应用，
+     * 并附带已卸载的 removed 和是否需要重新获取完整清单的 reset
+     */
+    private CompletableFuture<Object> apps(Command command) {
+        return appInventory.load().thenApply(inventory -> {
+            if (!command.has("since") && !command.has("launchable") && !command.has("prefix")
+                    && !command.has("offset") && !command.has("limit")) {
+                return inventory.list();
+            }
+            return inventory.query(command.getLong("since", -1), command.getBoolean("launchable", false),
+                    command.getString("prefix"), command.getInt("offset", 0), command.getInt("limit", 0));
+        });
+    }
+
+    private String startApp(Command command) {
+        String startPackageName = command.getString("packageName");
+        Log.d(TAG, "start: "+startPackageName+":");
+        if(autoAccessibilityService!=null) {
+            autoAccessibilityService.launchApp(startPackageName);
+        }
+        return "start fin";
+    }
+
+    private String gotoActivity(Command command) {
+        String targetPackageName = command.getString("packageName");
+        String targetActivityName = command.getString("activityName");
+        Log.d(TAG, "start: "+targetPackageName+":"+targetActivityName);
+        if(autoAccessibilityService!=null) {
+            autoAccessibilityService.launchActivity(targetPackageName, targetActivityName);
+        }
+        return "start fin";
+    }
+
+    private String stopApp(Command command) {
+        String stopPackageName = command.getString("packageName");
+        if(autoAccessibilityService!=null) {
+            autoAccessibilityService.stopApp(stopPackageName);
+        }
+        return "stop fin";
+    }
+
+    private String display(Command command) {
+        if(messageDisplayer!=null && command.has("text")){
+            String text = command.getString("text");
+            if (command.has("duration")) {
+                messageDisplayer.displayMessage(text, command.getInt("duration", 0));
+            } else {
+                messageDisplayer.displayMessage(text);
+            }
+        }
+        return "display fin";
+    }
+
+    /**
+     * 截图，binary 为 true 时以原始图像帧返回，否则返回 Base64，参数见 captureOptions
+     */
+    private Object screenshot(Command command) throws IOException {
+        if (command.getBoolean("binary", false)) {
+            return binaryScreenshot(command);
+        }
+        String base64="";
+        if(screenCaptureService!=null) {
+            base64 = screenCaptureService.screenshot(captureOptions(command));
+        }
+        return base64;
+    }
+
+    /**
+     * 点击 rect 对应的节点；带 selector 时点击满足条件的节点，rect 作为位置提示，
+     * 找不到节点时退回按 rect 点击，没有 rect 时失败。按坐标点击时在手势结束后响应
+     */
+    private Object click(Command command) throws IOException {
+        if(autoAccessibilityService!=null) {
+            if (command.has("selector")) {
+                NodeSelector selector = nodeSelector(command);
+                if (selector.isEmpty()) {
+                    throw new IllegalArgumentException("empty selector");
+                }
+                CompletableFuture<HashMap<String, Object>> clicked = autoAccessibilityService.click(selector);
+                if (clicked != null) {
+                    return operateFin(clicked);
+                }
+                if (!command.has("rect")) {
+                    throw new IllegalStateException("node not found");
                 }
-                m.setData(data);
-                message.getTarget().handleMessage(m);
             }
+            return operateFin(autoAccessibilityService.click(rect(command, "rect")));
         }
-    };
+        return null;
+    }
 
-    private final IBinder binder = new LocalBinder();
+    /**
+     * 滑动，手势完成或被取消后响应，batch 和脚本中的下一步不会打断滑动；未知的 type 直接响应
+     */
+    private Object swipe(Command command) {
+        if(autoAccessibilityService!=null) {
+            CompletableFuture<HashMap<String, Object>> swiped = autoAccessibilityService.swipe(
+                    Integer.parseInt(command.require("type")), command.getLong("duration", Gesture.DEFAULT_DURATION));
+            return swiped != null ? operateFin(swiped) : "Operate fin!";
+        }
+        return null;
+    }
 
-    public class LocalBinder extends Binder {
-        public ZeromqService getService() {
-            return ZeromqService.this;
+    // 手势结束后仍按原来的字符串响应
+    private static CompletableFuture<String> operateFin(CompletableFuture<?> gesture) {
+        return gesture.thenApply(result -> "Operate fin!");
+    }
+
+    /**
+     * 执行手势，完成或被取消后响应 {completed, parts, executed, repeats, elapsed}
+     * strokes 为笔画列表，每个笔画带 points（[[x,y],...]）、delay、hold（移动前按住的时间）、
+     * duration 或 velocity（px/s）；或用 pinch {x,y,from,to,angle} 做双指缩放。
+     * segment 为每段最长时间，超过时以连续笔画分段执行；repeat、interval 为重复次数和间隔
+     */
+    private CompletableFuture<HashMap<String,Object>> gesture(Command command) throws IOException {
+        if(autoAccessibilityService==null) return null;
+        Gesture gesture;
+        if (command.has("pinch")) {
+            Command pinch = new Command(command, command.getValue("pinch", new TypeReference<Map<String,Object>>() {}));
+            gesture = Gesture.pinch(pinch.getFloat("x", 0), pinch.getFloat("y", 0),
+                    pinch.getFloat("from", 0), pinch.getFloat("to", 0), pinch.getFloat("angle", 0),
+                    command.getLong("duration", 300));
+        } else {
+            List<Map<String,Object>> strokes = command.getValue("strokes", new TypeReference<List<Map<String,Object>>>() {});
+            if (strokes == null) {
+                throw new IllegalArgumentException("missing parameter: strokes");
+            }
+            gesture = new Gesture();
+            for (Map<String,Object> item : strokes) {
+                Command stroke = new Command(command, item);
+                List<List<Float>> points = stroke.getValue("points", new TypeReference<List<List<Float>>>() {});
+                if (points == null || points.isEmpty()) {
+                    throw new IllegalArgumentException("missing stroke points");
+                }
+                float[] path = new float[points.size() * 2];
+                for (int i = 0; i < points.size(); i++) {
+                    path[i * 2] = points.get(i).get(0);
+                    path[i * 2 + 1] = points.get(i).get(1);
+                }
+                gesture.addStroke(path, stroke.getLong("delay", 0), stroke.getLong("hold", 0),
+                        stroke.getLong("duration", 0), stroke.getFloat("velocity", 0));
+            }
+        }
+        gesture.setSegment(command.getLong("segment", 0))
+                .setRepeat(command.getInt("repeat", 1), command.getLong("interval", 0));
+        return autoAccessibilityService.perform(gesture);
+    }
+
+    private HashMap<String,Object> treeDiff(Command command) {
+        if(autoAccessibilityService!=null) {
+            return autoAccessibilityService.treeDiff(command.getLong("since", -1));
         }
+        return null;
     }
-    private String getLauncherActivityName(String packageName) {
+
+    /**
+     * 上传模板图像（data 为 PNG、JPEG 等编码数据），响应 {hash, width, height}，之后 locate 只需传 hash
+     */
+    private HashMap<String,Object> template(Command command) {
+        TemplateMatcher.Template template = templateMatcher.put(bytes(command, "data"));
+        HashMap<String,Object> resp = new HashMap<>();
+        resp.put("hash", template.hash);
+        resp.put("width", template.getWidth());
+        resp.put("height", template.getHeight());
+        return resp;
+    }
+
+    /**
+     * 在最近一帧中查找模板，响应 {found, score, scale, bounds, elapsed}，bounds 可直接用于 click
+     * hash 为已上传模板的哈希，也可以直接带 data；rect 为搜索区域，scales 为模板缩放比例列表，
+     * threshold 为判定找到的最低得分（默认 0.8），factor 为匹配前的降采样倍数（默认 2，最小 2）
+     */
+    private HashMap<String,Object> locate(Command command) throws IOException {
+        if (screenCaptureService == null) return null;
+        long start = SystemClock.uptimeMillis();
+        TemplateMatcher.Template template;
+        if (command.has("data")) {
+            template = templateMatcher.put(bytes(command, "data"));
+        } else {
+            template = templateMatcher.get(command.require("hash"));
+            if (template == null) {
+                throw new IllegalArgumentException("unknown template: " + command.getString("hash"));
+            }
+        }
+        List<Float> scaleList = command.getValue("scales", new TypeReference<List<Float>>() {});
+        float[] scales = new float[scaleList != null && !scaleList.isEmpty() ? scaleList.size() : 1];
+        scales[0] = 1f;
+        for (int i = 0; scaleList != null && i < scaleList.size(); i++) {
+            scales[i] = scaleList.get(i);
+        }
+        int factor = Math.max(ScreenCaptureService.MIN_GRAY_FACTOR, command.getInt("factor", 2));
+        GrayImage screen = screenCaptureService.grayFrame(factor);
+        if (screen == null) {
+            throw new IllegalStateException("no screen frame");
+        }
+        HashMap<String,Object> resp = TemplateMatcher.locate(screen, factor, template,
+                command.has("rect") ? rect(command, "rect") : null, scales, command.getFloat("threshold", 0.8f));
+        if (resp == null) {
+            resp = new HashMap<>();
+            resp.put("found", false);
+        }
+        resp.put("hash", template.hash);
+        resp.put("elapsed", SystemClock.uptimeMillis() - start);
+        return resp;
+    }
+
+    /**
+     * 当前界面的指纹 {imageHash, treeHash, package}，截屏或无障碍服务不可用时对应哈希为 null
+     * @return 两个服务都不可用时返回 null
+     */
+    private HashMap<String,Object> fingerprint() {
+        ScreenCaptureService capture = screenCaptureService;
+        AutoAccessibilityService accessibility = autoAccessibilityService;
+        if (capture == null && accessibility == null) return null;
+        HashMap<String,Object> fingerprint = new HashMap<>();
+        fingerprint.put("imageHash", capture != null ? capture.frameHash() : null);
+        fingerprint.put("treeHash", accessibility != null ? accessibility.structureHash() : null);
+        fingerprint.put("package", accessibility != null ? accessibility.activePackage() : null);
+        return fingerprint;
+    }
+
+    private HashMap<String,Object> matchScreen(HashMap<String,Object> fingerprint, int maxImage, int maxTree) {
+        HashMap<String,Object> match = screenLibrary.match((Long) fingerprint.get("imageHash"),
+                (Long) fingerprint.get("treeHash"), (String) fingerprint.get("package"), maxImage, maxTree);
+        if (match == null) {
+            match = new HashMap<>();
+            match.put("screen", null);
+        }
+        match.put("imageHash", ScreenLibrary.hex((Long) fingerprint.get("imageHash")));
+        match.put("treeHash", ScreenLibrary.hex((Long) fingerprint.get("treeHash")));
+        match.put("package", fingerprint.get("package"));
+        return match;
+    }
+
+    /**
+     * 识别当前界面，响应 {screen, imageDistance, treeDistance, imageHash, treeHash, package, elapsed}，
+     * 没有匹配的已知界面时 screen 为 null。imageDistance、treeDistance 为两种哈希的最大汉明距离（默认 10 和 6）；
+     * 带 expect 时附带 match 表示是否为该界面
+     */
+    private CompletableFuture<HashMap<String,Object>> whereAmI(Command command) {
+        long start = SystemClock.uptimeMillis();
+        HashMap<String,Object> fingerprint = fingerprint();
+        if (fingerprint == null) return null;
+        return screenLibrary.load().thenApply(library -> {
+            HashMap<String,Object> resp = matchScreen(fingerprint,
+                    command.getInt("imageDistance", ScreenLibrary.DEFAULT_IMAGE_DISTANCE),
+                    command.getInt("treeDistance", ScreenLibrary.DEFAULT_TREE_DISTANCE));
+            if (command.has("expect")) {
+                resp.put("match", command.getString("expect").equals(resp.get("screen")));
+            }
+            resp.put("elapsed", SystemClock.uptimeMillis() - start);
+            return resp;
+        });
+    }
+
+    /**
+     * 把当前界面登记为 name，响应 {name, imageHash, treeHash, package, size}
+     * 也可以直接带 imageHash、treeHash（whereAmI 响应中的十六进制值）和 package；
+     * image 或 tree 为 false 时不记录对应哈希，用于图像或结构经常变化的界面
+     */
+    private CompletableFuture<HashMap<String,Object>> registerScreen(Command command) {
+        String name = command.require("name");
+        HashMap<String,Object> fingerprint;
+        if (command.has("imageHash") || command.has("treeHash")) {
+            fingerprint = new HashMap<>();
+            fingerprint.put("imageHash", ScreenLibrary.parseHex(command.getString("imageHash")));
+            fingerprint.put("treeHash", ScreenLibrary.parseHex(command.getString("treeHash")));
+            fingerprint.put("package", command.getString("package"));
+        } else {
+            fingerprint = fingerprint();
+            if (fingerprint == null) return null;
+        }
+        Long imageHash = command.getBoolean("image", true) ? (Long) fingerprint.get("imageHash") : null;
+        Long treeHash = command.getBoolean("tree", true) ? (Long) fingerprint.get("treeHash") : null;
+        String packageName = (String) fingerprint.get("package");
+        return screenLibrary.load().thenApply(library -> {
+            library.register(name, imageHash, treeHash, packageName);
+            HashMap<String,Object> resp = new HashMap<>();
+            resp.put("name", name);
+            resp.put("imageHash", ScreenLibrary.hex(imageHash));
+            resp.put("treeHash", ScreenLibrary.hex(treeHash));
+            resp.put("package", packageName);
+            resp.put("size", library.size());
+            return resp;
+        });
+    }
+
+    /**
+     * 删除已知界面，响应 {removed, size}
+     */
+    private CompletableFuture<HashMap<String,Object>> forgetScreen(Command command) {
+        String name = command.require("name");
+        return screenLibrary.load().thenApply(library -> {
+            HashMap<String,Object> resp = new HashMap<>();
+            resp.put("removed", library.remove(name));
+            resp.put("size", library.size());
+            return resp;
+        });
+    }
+
+    /**
+     * 全部已知界面，最近使用的在前
+     */
+    private CompletableFuture<Object> screens(Command command) {
+        return screenLibrary.load().thenApply(ScreenLibrary::list);
+    }
+
+    /**
+     * 开启或关闭界面切换推送：enable 为 false 时关闭，interval 为检查间隔（毫秒，默认 500）
+     * 开启后每次检查时指纹有变化才重新识别，识别结果与上次不同时向所有控制端推送 screen 消息
+     * {screen, previous, imageDistance, treeDistance, imageHash, treeHash, package}
+     */
+    private synchronized HashMap<String,Object> watchScreen(Command command) {
+        if (screenWatcher != null) {
+            screenWatcher.shutdownNow();
+            screenWatcher = null;
+        }
+        HashMap<String,Object> resp = new HashMap<>();
+        boolean enable = command.getBoolean("enable", true);
+        resp.put("watching", enable);
+        if (!enable) return resp;
+        long interval = Math.max(100, command.getLong("interval", 500));
+        int maxImage = command.getInt("imageDistance", ScreenLibrary.DEFAULT_IMAGE_DISTANCE);
+        int maxTree = command.getInt("treeDistance", ScreenLibrary.DEFAULT_TREE_DISTANCE);
+        watchedScreen = null;
+        watchedImageHash = null;
+        watchedTreeHash = null;
+        screenWatcher = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "ScreenWatcher"));
+        screenWatcher.scheduleWithFixedDelay(() -> checkScreen(maxImage, maxTree), 0, interval, TimeUnit.MILLISECONDS);
+        resp.put("interval", interval);
+        return resp;
+    }
+
+    private void checkScreen(int maxImage, int maxTree) {
         try {
-            Intent intent = new Intent(Intent.ACTION_MAIN);
-            intent.addCategory(Intent.CATEGORY_LAUNCHER);
-            intent.setPackage(packageName);
+            HashMap<String,Object> fingerprint = fingerprint();
+            if (fingerprint == null || !screenLibrary.load().isDone()) return;
+            Long imageHash = (Long) fingerprint.get("imageHash");
+            Long treeHash = (Long) fingerprint.get("treeHash");
+            if (Objects.equals(imageHash, watchedImageHash) && Objects.equals(treeHash, watchedTreeHash)) return;
+            watchedImageHash = imageHash;
+            watchedTreeHash = treeHash;
+            HashMap<String,Object> match = matchScreen(fingerprint, maxImage, maxTree);
+            String screen = (String) match.get("screen");
+            if (Objects.equals(screen, watchedScreen)) return;
+            match.put("previous", watchedScreen);
+            watchedScreen = screen;
+            server.push(MqMessage.SCREEN, match);
+        } catch (RuntimeException e) {
+            // 异常会终止定时任务
+            Log.w(TAG, "Check screen error: " + e.getMessage());
+        }
+    }
 
-            List<ResolveInfo> resolveInfos = getPackageManager().queryIntentActivities(intent, 0);
-            if (!resolveInfos.isEmpty()) {
-                return resolveInfos.get(0).activityInfo.name;
+    /**
+     * 在最近一帧上采样像素，响应 {match, timestamp, elapsedUs, probes}
+     * probes 为采样列表，每项为 {x, y} 单个像素或 {rect} 区域平均，可带 expect（"#RRGGBB[AA]" 或 [r,g,b(,a)]）
+     * 和 tolerance（各通道最大差值，默认 16）；match 为全部采样是否匹配
+     */
+    private HashMap<String,Object> probe(Command command) throws IOException {
+        if (screenCaptureService == null) return null;
+        long start = System.nanoTime();
+        List<Map<String,Object>> items = command.getValue("probes", new TypeReference<List<Map<String,Object>>>() {});
+        if (items == null) {
+            throw new IllegalArgumentException("missing parameter: probes");
+        }
+        List<PixelProbe> probes = new ArrayList<>(items.size());
+        for (Map<String,Object> item : items) {
+            Command spec = new Command(command, item);
+            PixelProbe probe = spec.has("rect") ? PixelProbe.rect(rect(spec, "rect"))
+                    : PixelProbe.point(spec.getInt("x", 0), spec.getInt("y", 0));
+            if (spec.has("expect")) {
+                Object expect = spec.get("expect");
+                int[] color;
+                if (expect instanceof String) {
+                    color = PixelProbe.parseColor((String) expect);
+                } else {
+                    List<Integer> list = spec.getValue("expect", INT_LIST);
+                    color = new int[list.size()];
+                    for (int i = 0; i < color.length; i++) color[i] = list.get(i);
+                }
+                probe.expect(color, spec.getInt("tolerance", PixelProbe.DEFAULT_TOLERANCE));
             }
-        } catch (Exception e) {
-            Log.d("PackageUtils", "Error: " + e.getMessage());
+            probes.add(probe);
+        }
+        long timestamp = screenCaptureService.probe(probes);
+        if (timestamp < 0) {
+            throw new IllegalStateException("no screen frame");
+        }
+        boolean match = true;
+        ArrayList<HashMap<String,Object>> results = new ArrayList<>(probes.size());
+        for (PixelProbe probe : probes) {
+            match &= probe.matches();
+            results.add(probe.result());
+        }
+        HashMap<String,Object> resp = new HashMap<>();
+        resp.put("match", match);
+        resp.put("timestamp", timestamp);
+        resp.put("elapsedUs", (System.nanoTime() - start) / 1000);
+        resp.put("probes", results);
+        return resp;
+    }
+
+    /**
+     * 二进制参数：CBOR 中为字节串，JSON 中为 Base64 字符串
+     */
+    private static byte[] bytes(Command command, String key) {
+        Object value = command.get(key);
+        if (value instanceof byte[]) return (byte[]) value;
+        if (value == null) {
+            throw new IllegalArgumentException("missing parameter: " + key);
+        }
+        return Base64.decode(value.toString(), Base64.DEFAULT);
+    }
+
+    /**
+     * 导出节点树，每个节点一行 JSON 数组 [id, parent, depth, 字段...]
+     * 每写满一块即推送一条 chunk 消息 {request, seq, last}，附带该块的二进制帧；
+     * 分块与响应同在批量通道按序发送，响应在最后一块之后到达，只带 count、chunks 等汇总信息。
+     * fields 为输出的字段列表（见 TreeDump.FIELDS），depth 为最大深度，visible 为 true 时只导出可见节点，
+     * root 为子树起点的节点 id，也可以用 selector 取第一个匹配的节点；maxNodes 为节点数上限，chunkSize 为分块大小
+     */
+    private HashMap<String,Object> dump(Command command) throws IOException {
+        if(autoAccessibilityService==null) return null;
+        TreeDump dump = new TreeDump(command.getValue("fields", new TypeReference<List<String>>() {}),
+                (seq, last, chunk) -> {
+                    HashMap<String,Object> message = new HashMap<>();
+                    message.put("request", command.getUuid());
+                    message.put("seq", seq);
+                    message.put("last", last);
+                    server.push(command, MqMessage.CHUNK, message, Collections.singletonList(chunk));
+                })
+                .setMaxDepth(command.getInt("depth", -1))
+                .setVisibleOnly(command.getBoolean("visible", false))
+                .setMaxNodes(command.getInt("maxNodes", 0))
+                .setChunkSize(command.getInt("chunkSize", TreeDump.DEFAULT_CHUNK_SIZE));
+        int root = command.getInt("root", -1);
+        if (command.has("selector")) {
+            List<HashMap<String,Object>> nodes = autoAccessibilityService.find(nodeSelector(command), 1);
+            if (nodes.isEmpty()) {
+                throw new IllegalArgumentException("root node not found");
+            }
+            root = (Integer) nodes.get(0).get("id");
+        }
+        try {
+            if (!autoAccessibilityService.dump(dump, root)) {
+                throw new IllegalArgumentException("root node not found: " + root);
+            }
+        } catch (IOException | RuntimeException e) {
+            dump.release();
+            throw e;
+        }
+        HashMap<String,Object> header = new HashMap<>();
+        header.put("format", "jsonl");
+        header.put("fields", dump.getFields());
+        if (dump.getFields().contains("flags")) header.put("flagNames", TreeDump.FLAG_NAMES);
+        header.put("root", root);
+        header.put("count", dump.getCount());
+        header.put("chunks", dump.getChunks());
+        header.put("truncated", dump.isTruncated());
+        header.put("version", dump.getVersion());
+        return header;
+    }
+
+    /**
+     * 在设备端滚动查找节点，响应 {found, bounds, scrolls, end, elapsed}
+     * 查找条件见 nodeSelector；direction 为 forward（默认）或 backward，
+     * maxScrolls 为最多滚动次数，quiet 为每次滚动后的静默时间，timeout 为总时长
+     */
+    private HashMap<String,Object> scrollTo(Command command) throws Exception {
+        if(autoAccessibilityService==null) return null;
+        NodeSelector selector = nodeSelector(command);
+        if (selector.isEmpty()) {
+            throw new IllegalArgumentException("empty selector");
+        }
+        return autoAccessibilityService.scrollTo(selector,
+                "backward".equals(command.getString("direction")),
+                command.getInt("maxScrolls", 20),
+                command.getLong("quiet", 300),
+                command.getLong("timeout", 30000));
+    }
+
+    /**
+     * 节点选择条件，写在 selector 参数中，或直接写在请求参数中，条件见 NodeSelector.compile；
+     * 可选 rect [left,top,right,bottom] 作为位置提示
+     */
+    private NodeSelector nodeSelector(Command command) throws IOException {
+        Map<String,Object> spec = command.has("selector")
+                ? command.getValue("selector", new TypeReference<Map<String,Object>>() {})
+                : command.getParams();
+        NodeSelector selector = NodeSelector.compile(spec);
+        if (command.has("rect")) selector.setBounds(rect(command, "rect"));
+        return selector;
+    }
+
+    /**
+     * 按条件查找节点，响应 {count, nodes}，limit 为最多返回的节点数
+     */
+    private HashMap<String,Object> find(Command command) throws IOException {
+        if(autoAccessibilityService==null) return null;
+        NodeSelector selector = nodeSelector(command);
+        if (selector.isEmpty()) {
+            throw new IllegalArgumentException("empty selector");
+        }
+        List<HashMap<String,Object>> nodes = autoAccessibilityService.find(selector, command.getInt("limit", 10));
+        HashMap<String,Object> resp = new HashMap<>();
+        resp.put("count", nodes.size());
+        resp.put("nodes", nodes);
+        return resp;
+    }
+
+    /**
+     * 等待界面稳定，条件满足或超时后再响应，不占用执行线程
+     */
+    private CompletableFuture<HashMap<String,Object>> waitStable(Command command) {
+        if(autoAccessibilityService==null) return null;
+        CompletableFuture<HashMap<String,Object>> future = new CompletableFuture<>();
+        autoAccessibilityService.awaitStable(pageWaiter(command).setCallback(future::complete));
+        return future;
+    }
+
+    /**
+     * 由请求参数构造界面稳定等待条件：quiet、timeout(ms)，以及可选的 viewId、text、packageName
+     */
+    private PageWaiter pageWaiter(Command command) {
+        return new PageWaiter(command.getLong("quiet", PageWaiter.DEFAULT_QUIET),
+                command.getLong("timeout", PageWaiter.DEFAULT_TIMEOUT))
+                .setViewId(command.getString("viewId"))
+                .setText(command.getString("text"))
+                .setPackageName(command.getString("packageName"));
+    }
+
+    /**
+     * 截图以原始图像帧返回，参数同 captureOptions；还没有屏幕帧时失败
+     */
+    private BinaryPayload binaryScreenshot(Command command) throws IOException {
+        if (screenCaptureService == null) return null;
+        CaptureOptions options = captureOptions(command);
+        int[] size = new int[2];
+        FramePool.Buffer image = screenCaptureService.capture(options, size);
+        if (image == null) {
+            throw new IllegalStateException("no screen frame");
+        }
+        HashMap<String,Object> header = new HashMap<>();
+        header.put("format", command.getString("format", "jpeg"));
+        header.put("width", size[0]);
+        header.put("height", size[1]);
+        header.put("size", image.size());
+        return new BinaryPayload(header, image);
+    }
+
+    /**
+     * 截图参数：format 可选 jpeg、webp、webp_lossless、png，quality 为 0-100，
+     * rect 为裁剪区域 [left,top,right,bottom]（完全在屏幕外时失败），scale 为缩放比例，maxSize 为最长边上限，
+     * grayscale 为 true 时输出灰度图
+     */
+    private CaptureOptions captureOptions(Command command) throws IOException {
+        CaptureOptions options = new CaptureOptions();
+        if (command.has("format")) {
+            Bitmap.CompressFormat compressFormat = ScreenCaptureService.compressFormat(command.getString("format"));
+            if (compressFormat == null) {
+                throw new IllegalArgumentException("unsupported format: " + command.getString("format"));
+            }
+            options.setFormat(compressFormat);
+        }
+        if (command.has("quality")) options.setQuality(command.getInt("quality", ScreenCaptureService.DEFAULT_QUALITY));
+        if (command.has("rect")) options.setCrop(rect(command, "rect"));
+        if (command.has("scale")) options.setScale(command.getFloat("scale", 1f));
+        if (command.has("maxSize")) options.setMaxSize(command.getInt("maxSize", 0));
+        options.setGrayscale(command.getBoolean("grayscale", false));
+        return options;
+    }
+
+    /**
+     * 矩形参数 [left,top,right,bottom]，可以是列表或 JSON 字符串
+     */
+    private Rect rect(Command command, String key) throws IOException {
+        List<Integer> listRect = command.getValue(key, INT_LIST);
+        if (listRect == null || listRect.size() < 4) {
+            throw new IllegalArgumentException("invalid " + key + ": " + command.get(key));
+        }
+        Rect rect = new Rect();
+        rect.set(listRect.get(0),listRect.get(1),listRect.get(2),listRect.get(3));
+        return rect;
+    }
+
+    /**
+     * 开始或停止屏幕帧推送：action 为 start 或 stop，fps 为最大帧率，
+     * tile 为变化检测的分块大小，format、quality 同 screenshot
+     */
+    private HashMap<String,Object> stream(Command command) {
+        if (screenCaptureService == null) return null;
+        HashMap<String,Object> resp = new HashMap<>();
+        if ("stop".equals(command.getString("action"))) {
+            screenCaptureService.stopStream();
+            resp.put("streaming", false);
+            return resp;
+        }
+        String format = command.getString("format", "jpeg");
+        Bitmap.CompressFormat compressFormat = ScreenCaptureService.compressFormat(format);
+        if (compressFormat == null) {
+            throw new IllegalArgumentException("unsupported format: " + format);
+        }
+        int fps = command.getInt("fps", 5);
+        int quality = command.getInt("quality", ScreenCaptureService.DEFAULT_QUALITY);
+        int tile = command.getInt("tile", 64);
+        screenCaptureService.startStream(new FrameStreamer(fps, compressFormat, quality, tile, (header, frames) -> {
+            header.put("format", format);
+            server.push(command, MqMessage.FRAME, header, frames);
+        }));
+        resp.put("streaming", true);
+        resp.put("fps", fps);
+        resp.put("format", format);
+        return resp;
+    }
+
+    /**
+     * 查询或设置主动推送和心跳的编码：codec 为 json 或 cbor，不带时只返回当前设置
+     */
+    private HashMap<String,Object> codec(Command command) {
+        if (command.has("codec") && !server.setCodec(command.getString("codec"))) {
+            throw new IllegalArgumentException("unsupported codec: " + command.getString("codec"));
+        }
+        HashMap<String,Object> resp = new HashMap<>();
+        resp.put("codec", server.getCodec());
+        resp.put("codecs", new ArrayList<>(MessageCodec.SUPPORTED));
+        return resp;
+    }
+
+    /**
+     * 上传脚本 name，steps 为步骤列表，defaults 为参数默认值，格式见 ScriptEngine；
+     * 响应 {name, hash, steps}，脚本有错误时返回出错步骤的位置
+     */
+    private CompletableFuture<HashMap<String,Object>> script(Command command) throws IOException {
+        String name = command.require("name");
+        HashMap<String,Object> source = new HashMap<>();
+        source.put("steps", command.getValue("steps", new TypeReference<List<Object>>() {}));
+        source.put("defaults", command.getValue("defaults", new TypeReference<Map<String,Object>>() {}));
+        return scriptEngine.load().thenApply(engine -> {
+            ScriptEngine.Script script = engine.put(name, source);
+            HashMap<String,Object> resp = new HashMap<>();
+            resp.put("name", script.name);
+            resp.put("hash", script.hash);
+            resp.put("steps", script.getSize());
+            return resp;
+        });
+    }
+
+    /**
+     * 执行已上传的脚本 name，params 为参数，timeout 为总的最长时间（毫秒，默认 10 分钟）；
+     * progress 为 true（默认）时每执行一个操作推送一次 progress 消息。
+     * 结束后响应 {run, script, status, steps, elapsed, result}，run 为本次请求的 uuid，可用于 stopScript
+     */
+    private CompletableFuture<HashMap<String,Object>> run(Command command) throws IOException {
+        String name = command.require("name");
+        Map<String,Object> params = command.getValue("params", new TypeReference<Map<String,Object>>() {});
+        long timeout = command.getLong("timeout", ScriptEngine.DEFAULT_TIMEOUT);
+        boolean progress = command.getBoolean("progress", true);
+        return scriptEngine.load().thenCompose(engine -> engine.run(command, name, params, timeout, progress));
+    }
+
+    /**
+     * 取消执行中的脚本，run 为执行请求的 uuid，响应 {cancelled}
+     */
+    private HashMap<String,Object> stopScript(Command command) {
+        HashMap<String,Object> resp = new HashMap<>();
+        resp.put("cancelled", scriptEngine.cancel(command.require("run")));
+        return resp;
+    }
+
+    /**
+     * 已上传的脚本 {name, hash, steps, updated}，控制端按 hash 判断是否需要重新上传
+     */
+    private CompletableFuture<Object> scripts(Command command) {
+        return scriptEngine.load().thenApply(ScriptEngine::list);
+    }
+
+    private CompletableFuture<HashMap<String,Object>> deleteScript(Command command) {
+        String name = command.require("name");
+        return scriptEngine.load().thenApply(engine -> {
+            HashMap<String,Object> resp = new HashMap<>();
+            resp.put("removed", engine.remove(name));
+            return resp;
+        });
+    }
+
+    /**
+     * 录制用户操作：action 为 start 时开始录制，响应 {recording}；
+     * 为 stop 时结束录制，响应录制的脚本 {steps, defaults, events, duration}，
+     * 带 name 时同时保存为该名称的脚本，附带 hash，之后可用 run 回放
+     */
+    private Object record(Command command) {
+        if(autoAccessibilityService==null) return null;
+        if ("start".equals(command.require("action"))) {
+            autoAccessibilityService.startRecording();
+            HashMap<String,Object> resp = new HashMap<>();
+            resp.put("recording", true);
+            return resp;
+        }
+        HashMap<String,Object> recorded = autoAccessibilityService.stopRecording();
+        if (recorded == null) {
+            throw new IllegalStateException("not recording");
+        }
+        if (!command.has("name")) return recorded;
+        HashMap<String,Object> source = new HashMap<>();
+        source.put("steps", recorded.get("steps"));
+        source.put("defaults", recorded.get("defaults"));
+        String name = command.getString("name");
+        return scriptEngine.load().thenApply(engine -> {
+            recorded.put("name", name);
+            recorded.put("hash", engine.put(name, source).hash);
+            return recorded;
+        });
+    }
+
+    /**
+     * 依次执行 operations 中的多个操作，合并为一个响应返回
+     * 每个步骤可带 waitStable（毫秒）在执行后等待界面稳定；
+     * abortOnError 默认为 true，某步失败时不再执行后续步骤
+     */
+    private HashMap<String,Object> batch(Command command) throws Exception {
+        List<Map<String,Object>> steps = command.getValue("operations", new TypeReference<List<Map<String,Object>>>() {});
+        if (steps == null) {
+            throw new IllegalArgumentException("missing parameter: operations");
+        }
+        boolean abortOnError = command.getBoolean("abortOnError", true);
+        ArrayList<Map<String,Object>> results = new ArrayList<>();
+        boolean aborted = false;
+        for (Map<String,Object> step : steps) {
+            Command stepCommand = new Command(command, step);
+            String operation = stepCommand.getOperation();
+            HashMap<String,Object> result = new HashMap<>();
+            result.put("operation", operation);
+            boolean success;
+            try {
+                if (!dispatcher.has(operation) || "batch".equals(operation)) {
+                    throw new IllegalArgumentException("invalid operation: " + operation);
+                }
+                // 截图等二进制结果嵌入 JSON 响应，缓冲在此归还
+                Object res = BinaryPayload.detach(dispatcher.dispatchSync(stepCommand));
+                result.put("result", res);
+                String error = CommandDispatcher.resultError(operation, res);
+                if (error == null && stepCommand.has("waitStable") && autoAccessibilityService != null
+                        && !autoAccessibilityService.waitForStable(stepCommand.getLong("waitStable", 0))) {
+                    error = "wait stable timeout";
+                }
+                success = error == null;
+                if (!success) result.put("error", error);
+            } catch (Exception e) {
+                success = false;
+                result.put("error", String.valueOf(e.getMessage()));
+            }
+            result.put("status", success ? "ok" : "error");
+            results.add(result);
+            if (!success && abortOnError) {
+                aborted = true;
+                break;
+            }
+        }
+        HashMap<String,Object> resp = new HashMap<>();
+        resp.put("results", results);
+        resp.put("completed", results.size());
+        resp.put("total", steps.size());
+        resp.put("aborted", aborted);
+        return resp;
+    }
+
+    /**
+     * 心跳附带的设备负载：最近截图耗时（毫秒）、内存占用（MB）和节点计数
+     */
+    private Map<String,Object> health() {
+        HashMap<String,Object> health = new HashMap<>();
+        ScreenCaptureService capture = screenCaptureService;
+        health.put("captureMs", capture != null ? capture.getLastCaptureLatency() : -1);
+        AutoAccessibilityService accessibility = autoAccessibilityService;
+        health.put("nodes", accessibility != null ? accessibility.nodeStats() : NodeScope.stats());
+        Runtime runtime = Runtime.getRuntime();
+        health.put("memUsed", (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        health.put("memMax", runtime.maxMemory() >> 20);
+        return health;
+    }
+
+    private final IBinder binder = new LocalBinder();
+
+    public class LocalBinder extends Binder {
+        public ZeromqService getService() {
+            return ZeromqService.this;
         }
-        return null;
     }
     @Override
     public void onCreate() {
         super.onCreate();
-        List<ApplicationInfo> apps = getPackageManager().getInstalledApplications(PackageManager.GET_META_DATA);
-        for (ApplicationInfo app : apps) {
-            HashMap<String,String> resp = new HashMap<String,String>();
-            resp.put("name", getPackageManager().getApplicationLabel(app).toString());
-            resp.put("package", app.packageName);
-            resp.put("mainActivity", getLauncherActivityName(app.packageName));
-            appList.add(resp);
-        }
-        Log.i(TAG, "App list:"+appList);
+        // 应用清单在后台加载，不推迟服务注册
+        appInventory = new AppInventory(this);
+        appInventory.start();
+        screenLibrary = new ScreenLibrary(this);
+        screenLibrary.load();
         Log.i(TAG, "server start");
-        ZeromqServer server = new ZeromqServer(agentId, getServerAddress(), msgHandler);
-        Thread zmqThread = new Thread(server);
+        registerCommands();
+        server = new ZeromqServer(agentId, getServerAddress(), dispatcher, getParallelism());
+        server.setHealthProvider(this::health);
+        scriptEngine = new ScriptEngine(this, dispatcher,
+                (origin, event) -> server.push(origin, MqMessage.PROGRESS, event, Collections.emptyList()));
+        scriptEngine.load();
+        Thread zmqThread = new Thread(server, "ZeromqIO");
         zmqThread.start();
 
         Intent intent=new Intent(this, ScreenCaptureService.class);
@@ -222,6 +960,21 @@ public class ZeromqService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (server != null) {
+            server.stop();
+        }
+        if (appInventory != null) {
+            appInventory.stop();
+        }
+        synchronized (this) {
+            if (screenWatcher != null) screenWatcher.shutdownNow();
+        }
+        if (screenLibrary != null) {
+            screenLibrary.stop();
+        }
+        if (scriptEngine != null) {
+            scriptEngine.stop();
+        }
     }
 
     @Override
@@ -240,4 +993,17 @@ public class ZeromqService extends Service {
         SharedPreferences preferences = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         return preferences.getString(KEY_SERVER_ADDRESS,  getString(R.string.server_address));
     }
+
+    /**
+     * 设置同时执行的请求数上限，重启服务后生效
+     */
+    public void setParallelism(int parallelism) {
+        SharedPreferences preferences = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        preferences.edit().putInt(KEY_PARALLELISM, parallelism).apply();
+    }
+
+    private int getParallelism() {
+        SharedPreferences preferences = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return preferences.getInt(KEY_PARALLELISM, ZeromqServer.DEFAULT_PARALLELISM);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package com.kingsware.irpa.zeromq;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CommandTest {
+    private static Command command(Object... keyValues) {
+        HashMap<String, Object> params = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            params.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return new Command("u1", MessageCodec.JSON, params);
+    }
+
+    @Test
+    public void stringParamsAreConverted() {
+        Command command = command("x", " 12 ", "d", "1500", "f", "0.5", "b", "true");
+        assertEquals(12, command.getInt("x", 0));
+        assertEquals(1500L, command.getLong("d", 0));
+        assertEquals(0.5f, command.getFloat("f", 0), 0);
+        assertTrue(command.getBoolean("b", false));
+    }
+
+    @Test
+    public void nativeParamsAreConverted() {
+        Command command = command("x", 12.7, "d", 1500, "f", 1, "b", Boolean.TRUE);
+        assertEquals(12, command.getInt("x", 0));
+        assertEquals(1500L, command.getLong("d", 0));
+        assertEquals(1f, command.getFloat("f", 0), 0);
+        assertTrue(command.getBoolean("b", false));
+        assertEquals("1500", command.getString("d"));
+    }
+
+    @Test
+    public void missingParamsUseDefaults() {
+        Command command = command("operation", "click");
+        assertEquals("click", command.getOperation());
+        assertFalse(command.has("x"));
+        assertEquals(-1, command.getInt("x", -1));
+        assertEquals(7L, command.getLong("x", 7));
+        assertEquals("none", command.getString("x", "none"));
+        assertTrue(command.getBoolean("x", true));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void invalidNumberThrows() {
+        command("x", "abc").getInt("x", 0);
+    }
+
+    @Test
+    public void requireThrowsForMissing() {
+        try {
+            command().require("name");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("missing parameter: name", e.getMessage());
+        }
+        assertEquals("a", command("name", "a").require("name"));
+    }
+
+    @Test
+    public void structuredValueFromJsonString() throws Exception {
+        Command command = command("rect", "[1, 2, 3, 4]");
+        assertEquals(Arrays.asList(1, 2, 3, 4), command.getValue("rect", new TypeReference<List<Integer>>() {}));
+    }
+
+    @Test
+    public void structuredValueFromNative() throws Exception {
+        HashMap<String, Object> step = new HashMap<>();
+        step.put("operation", "click");
+        Command command = command("operations", Arrays.asList(step));
+        List<Map<String, Object>> steps = command.getValue("operations", new TypeReference<List<Map<String, Object>>>() {});
+        assertEquals(1, steps.size());
+        assertEquals("click", steps.get(0).get("operation"));
+        assertNull(command.getValue("missing", new TypeReference<List<Integer>>() {}));
+    }
+
+    @Test
+    public void childCommandKeepsRequest() {
+        Command parent = command("operation", "batch");
+        HashMap<String, Object> step = new HashMap<>();
+        step.put("operation", "click");
+        Command child = new Command(parent, step);
+        assertEquals("u1", child.getUuid());
+        assertEquals(MessageCodec.JSON, child.getCodec());
+        assertEquals("click", child.getOperation());
+    }
+}
@@ -0,0 +1,80 @@
+package com.kingsware.irpa.zeromq;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageCodecTest {
+    private final MessageCodec codec = new MessageCodec();
+
+    private static MqMessage<Object> request() {
+        HashMap<String, Object> params = new HashMap<>();
+        params.put("operation", "click");
+        params.put("x", 100);
+        params.put("rect", Arrays.asList(1, 2, 3, 4));
+        params.put("long", true);
+        return new MqMessage<Object>("u1", MqMessage.OPERATION, params);
+    }
+
+    @Test
+    public void detectsJson() {
+        assertEquals(MessageCodec.JSON, MessageCodec.detect("{\"uuid\":1}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(MessageCodec.JSON, MessageCodec.detect(" \n{}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(MessageCodec.JSON, MessageCodec.detect(new byte[0]));
+    }
+
+    @Test
+    public void detectsCbor() throws Exception {
+        assertEquals(MessageCodec.CBOR, MessageCodec.detect(codec.encode(request(), MessageCodec.CBOR)));
+    }
+
+    @Test
+    public void supportedCodecs() {
+        assertTrue(MessageCodec.isSupported("json"));
+        assertTrue(MessageCodec.isSupported("cbor"));
+        assertFalse(MessageCodec.isSupported("xml"));
+        assertFalse(MessageCodec.isSupported(null));
+    }
+
+    @Test
+    public void jsonRoundTrip() throws Exception {
+        roundTrip(MessageCodec.JSON);
+    }
+
+    @Test
+    public void cborRoundTrip() throws Exception {
+        roundTrip(MessageCodec.CBOR);
+    }
+
+    private void roundTrip(String name) throws Exception {
+        byte[] frame = codec.encode(request(), name);
+        assertEquals(name, MessageCodec.detect(frame));
+        MqMessage<HashMap<String, Object>> decoded = codec.decode(frame, name);
+        assertEquals(MqMessage.OPERATION, decoded.getType());
+        HashMap<String, Object> params = decoded.getMessage();
+        assertEquals("click", params.get("operation"));
+        assertEquals(100, ((Number) params.get("x")).intValue());
+        assertEquals(Boolean.TRUE, params.get("long"));
+        List<?> rect = (List<?>) params.get("rect");
+        assertEquals(4, rect.size());
+        assertEquals(3, ((Number) rect.get(2)).intValue());
+    }
+
+    @Test
+    public void cborIsSmallerThanJson() throws Exception {
+        assertTrue(codec.encode(request(), MessageCodec.CBOR).length < codec.encode(request(), MessageCodec.JSON).length);
+    }
+
+    @Test
+    public void binaryIsBase64InJson() throws Exception {
+        HashMap<String, Object> message = new HashMap<>();
+        message.put("data", new byte[]{1, 2, 3});
+        String json = new String(codec.encode(message, MessageCodec.JSON), StandardCharsets.UTF_8);
+        assertEquals("{\"data\":\"AQID\"}", json);
+    }
+}
@@ -0,0 +1,135 @@
+package com.kingsware.irpa.zeromq;
+
+import com.kingsware.irpa.automation.FramePool;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+    private final FramePool pool = new FramePool(1024);
+
+    private FramePool.Buffer buffer(int size, int value) {
+        FramePool.Buffer buffer = pool.acquireBuffer();
+        for (int i = 0; i < size; i++) {
+            buffer.write(value);
+        }
+        return buffer;
+    }
+
+    @Test
+    public void newRequestIsExecuted() {
+        ResponseCache cache = new ResponseCache();
+        assertNull(cache.begin("a"));
+    }
+
+    @Test
+    public void duplicateInProgressIsNotDone() {
+        ResponseCache cache = new ResponseCache();
+        cache.begin("a");
+        ResponseCache.Entry entry = cache.begin("a");
+        assertNotNull(entry);
+        assertFalse(entry.done);
+    }
+
+    @Test
+    public void completedResponseIsReplayed() {
+        ResponseCache cache = new ResponseCache();
+        cache.begin("a");
+        byte[] header = {1, 2, 3};
+        FramePool.Buffer frame = buffer(4, 7);
+        cache.complete("a", header, Collections.singletonList(frame));
+        // 缓存的是副本，缓冲归还后内容不变
+        frame.release();
+        buffer(4, 9).release();
+
+        ResponseCache.Entry entry = cache.begin("a");
+        assertTrue(entry.done);
+        assertFalse(entry.tooLarge);
+        assertArrayEquals(header, entry.header);
+        assertEquals(1, entry.frames.length);
+        assertArrayEquals(new byte[]{7, 7, 7, 7}, entry.frames[0]);
+    }
+
+    @Test
+    public void noResponseIsRemembered() {
+        ResponseCache cache = new ResponseCache();
+        cache.begin("a");
+        cache.complete("a", null, Collections.<FramePool.Buffer>emptyList());
+        ResponseCache.Entry entry = cache.begin("a");
+        assertTrue(entry.done);
+        assertNull(entry.header);
+    }
+
+    @Test
+    public void oversizedResponseIsNotReExecuted() {
+        ResponseCache cache = new ResponseCache();
+        cache.begin("a");
+        List<FramePool.Buffer> frames = Arrays.asList(buffer(400 * 1024, 1), buffer(400 * 1024, 2));
+        cache.complete("a", new byte[]{1}, frames);
+        ResponseCache.Entry entry = cache.begin("a");
+        assertNotNull(entry);
+        assertTrue(entry.done);
+        assertTrue(entry.tooLarge);
+        assertNull(entry.header);
+    }
+
+    @Test
+    public void oversizedReadOnlyResponseIsReExecuted() {
+        ResponseCache cache = new ResponseCache();
+        cache.begin("a");
+        List<FramePool.Buffer> frames = Arrays.asList(buffer(400 * 1024, 1), buffer(400 * 1024, 2));
+        cache.complete("a", new byte[]{1}, frames, true);
+        assertNull(cache.begin("a"));
+    }
+
+    @Test
+    public void completeWithoutBeginIsIgnored() {
+        ResponseCache cache = new ResponseCache();
+        cache.complete("a", new byte[]{1}, Collections.<FramePool.Buffer>emptyList());
+        assertNull(cache.begin("a"));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        ResponseCache cache = new ResponseCache();
+        for (int i = 0; i < 256; i++) {
+            cache.begin("r" + i);
+            cache.complete("r" + i, new byte[]{(byte) i}, Collections.<FramePool.Buffer>emptyList());
+        }
+        // 访问后 r0 变为最近使用
+        assertNotNull(cache.begin("r0"));
+        assertNull(cache.begin("new"));
+        assertNotNull(cache.begin("r0"));
+        assertNull(cache.begin("r1"));
+    }
+
+    @Test
+    public void inProgressSurvivesEviction() {
+        ResponseCache cache = new ResponseCache();
+        cache.begin("running");
+        for (int i = 0; i < 300; i++) {
+            cache.begin("r" + i);
+            cache.complete("r" + i, new byte[]{1}, Collections.<FramePool.Buffer>emptyList());
+        }
+        ResponseCache.Entry entry = cache.begin("running");
+        assertNotNull(entry);
+        assertFalse(entry.done);
+    }
+
+    @Test
+    public void totalBytesAreBounded() {
+        ResponseCache cache = new ResponseCache();
+        // 每条 400KB，8MB 上限内最多保留 20 条
+        for (int i = 0; i < 30; i++) {
+            cache.begin("r" + i);
+            cache.complete("r" + i, new byte[400 * 1024], Collections.<FramePool.Buffer>emptyList());
+        }
+        assertNull(cache.begin("r0"));
+        assertNotNull(cache.begin("r29"));
+    }
+}
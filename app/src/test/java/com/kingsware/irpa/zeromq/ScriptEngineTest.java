@@ -0,0 +1,321 @@
+package com.kingsware.irpa.zeromq;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ScriptEngineTest {
+    private ScriptEngine engine;
+    // echo 收到的参数
+    private final List<Map<String, Object>> echoed = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger polls = new AtomicInteger();
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        CommandDispatcher dispatcher = new CommandDispatcher()
+                .register("echo", command -> {
+                    echoed.add(new HashMap<>(command.getParams()));
+                    return new HashMap<>(command.getParams());
+                })
+                .register("find", command -> {
+                    HashMap<String, Object> node = new HashMap<>();
+                    node.put("bounds", Arrays.asList(1, 2, 3, 4));
+                    HashMap<String, Object> result = new HashMap<>();
+                    result.put("count", 1);
+                    result.put("nodes", Collections.singletonList(node));
+                    return result;
+                })
+                // 依次返回 count 为 2、1、0
+                .register("poll", command -> map("count", Math.max(0, 2 - polls.getAndIncrement())))
+                .register("start", command -> {
+                    started.countDown();
+                    return map();
+                })
+                .register("broken", command -> {
+                    throw new IllegalStateException("broken");
+                })
+                .register("run", command -> map());
+        engine = new ScriptEngine(dispatcher, null);
+    }
+
+    @After
+    public void tearDown() {
+        engine.stop();
+    }
+
+    private static Map<String, Object> map(Object... keyValues) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+
+    private static Map<String, Object> script(Object... steps) {
+        return map("steps", Arrays.asList(steps));
+    }
+
+    private HashMap<String, Object> run(Map<String, Object> source, Map<String, Object> params, long timeout)
+            throws Exception {
+        engine.put("test", source);
+        return engine.run(new Command("run-1", MessageCodec.JSON, map()), "test", params, timeout, false)
+                .get(5, TimeUnit.SECONDS);
+    }
+
+    private HashMap<String, Object> run(Object... steps) throws Exception {
+        return run(script(steps), null, 0);
+    }
+
+    private String compileError(Map<String, Object> source) {
+        try {
+            engine.put("bad", source);
+            fail("expected compile error");
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    // ---- 编译 ----
+
+    @Test
+    public void compileErrorHasStepPath() {
+        assertEquals("steps[1].then[0]: unknown step [bogus]", compileError(script(
+                map("operation", "echo"),
+                map("if", map("var", "a"), "then", Arrays.asList(map("bogus", 1))))));
+    }
+
+    @Test
+    public void compileErrorInCondition() {
+        assertEquals("steps[0].if.all[1]: unknown condition [x]", compileError(script(
+                map("if", map("all", Arrays.asList(map("var", "a"), map("x", 1))), "then", Arrays.asList()))));
+        assertEquals("steps[0].switch[0].when: expected object", compileError(script(
+                map("switch", Arrays.asList(map("when", "a", "steps", Arrays.asList()))))));
+    }
+
+    @Test
+    public void compileErrorForOperations() {
+        assertEquals("steps[0]: invalid operation: nope", compileError(script(map("operation", "nope"))));
+        // run 已注册，但不能在脚本中执行
+        assertEquals("steps[0]: invalid operation: run", compileError(script(map("operation", "run"))));
+        assertEquals("steps[0].retry: expected number", compileError(script(map("operation", "echo", "retry", "x"))));
+    }
+
+    @Test
+    public void compileErrorForStructure() {
+        assertEquals("steps: expected step list", compileError(map("steps", "x")));
+        assertEquals("steps[0].repeat: expected number",
+                compileError(script(map("repeat", "many", "steps", Arrays.asList()))));
+        assertEquals("defaults: expected object", compileError(map("steps", Arrays.asList(), "defaults", 1)));
+    }
+
+    @Test
+    public void unchangedScriptIsNotRecompiled() {
+        Map<String, Object> source = script(map("operation", "echo"));
+        ScriptEngine.Script first = engine.put("s", source);
+        assertSame(first, engine.put("s", script(map("operation", "echo"))));
+        assertNotSame(first, engine.put("s", script(map("operation", "echo", "x", 1))));
+        assertEquals(1, first.getSize());
+    }
+
+    // ---- 占位符 ----
+
+    @Test
+    public void singlePlaceholderKeepsType() throws Exception {
+        HashMap<String, Object> resp = run(script(
+                map("operation", "find", "save", "r"),
+                map("operation", "echo", "rect", "${r.nodes.0.bounds}", "n", "${n}", "missing", "${r.nodes.5}")),
+                map("n", 5), 0);
+        assertEquals("ok", resp.get("status"));
+        Map<String, Object> params = echoed.get(0);
+        assertEquals(Arrays.asList(1, 2, 3, 4), params.get("rect"));
+        assertEquals(5, params.get("n"));
+        assertNull(params.get("missing"));
+    }
+
+    @Test
+    public void embeddedPlaceholdersAreStrings() throws Exception {
+        run(script(
+                map("operation", "find", "save", "r"),
+                map("operation", "echo", "label", "at ${r.nodes.0.bounds.0},${r.count}",
+                        "nested", map("list", Arrays.asList("${n}")))),
+                map("n", true), 0);
+        Map<String, Object> params = echoed.get(0);
+        assertEquals("at 1,1", params.get("label"));
+        assertEquals(map("list", Arrays.asList(true)), params.get("nested"));
+    }
+
+    @Test
+    public void defaultsAreOverriddenByParams() throws Exception {
+        Map<String, Object> source = script(map("operation", "echo", "a", "${a}", "b", "${b}"));
+        source.put("defaults", map("a", 1, "b", 2));
+        run(source, map("b", 3), 0);
+        assertEquals(1, echoed.get(0).get("a"));
+        assertEquals(3, echoed.get(0).get("b"));
+    }
+
+    @Test
+    public void undefinedVariableFailsStep() throws Exception {
+        HashMap<String, Object> resp = run(map("operation", "echo", "a", "${nope}"));
+        assertEquals("failed", resp.get("status"));
+        assertEquals("undefined variable: nope", resp.get("error"));
+        assertEquals("steps[0]", resp.get("step"));
+    }
+
+    @Test
+    public void returnResolvesValue() throws Exception {
+        HashMap<String, Object> resp = run(
+                map("operation", "find", "save", "r"),
+                map("return", "${r.nodes.0}"),
+                map("operation", "echo"));
+        assertEquals("ok", resp.get("status"));
+        assertEquals(map("bounds", Arrays.asList(1, 2, 3, 4)), new LinkedHashMap<>((Map<?, ?>) resp.get("result")));
+        assertTrue(echoed.isEmpty());
+    }
+
+    // ---- 循环 ----
+
+    @Test
+    public void repeatSetsIndex() throws Exception {
+        HashMap<String, Object> resp = run(map("repeat", 3, "index", "i",
+                "steps", Arrays.asList(map("operation", "echo", "i", "${i}"))));
+        assertEquals("ok", resp.get("status"));
+        assertEquals(3, resp.get("steps"));
+        assertEquals(3, echoed.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, echoed.get(i).get("i"));
+        }
+    }
+
+    @Test
+    public void whileTestsOperationCount() throws Exception {
+        HashMap<String, Object> resp = run(map("while", map("operation", "poll"),
+                "steps", Arrays.asList(map("operation", "echo"))));
+        assertEquals("ok", resp.get("status"));
+        // count 为 2、1 时执行，为 0 时结束
+        assertEquals(2, echoed.size());
+        assertEquals(3, polls.get());
+    }
+
+    @Test
+    public void untilStopsAfterBody() throws Exception {
+        HashMap<String, Object> resp = run(map("until", map("var", "i", "equals", 2), "index", "i",
+                "steps", Arrays.asList(map("operation", "echo"))));
+        assertEquals("ok", resp.get("status"));
+        assertEquals(3, echoed.size());
+    }
+
+    @Test
+    public void loopLimitFails() throws Exception {
+        HashMap<String, Object> resp = run(script(map("while", map("var", "go"), "max", 3,
+                "steps", Arrays.asList(map("operation", "echo")))), map("go", true), 0);
+        assertEquals("failed", resp.get("status"));
+        assertEquals("loop limit exceeded: 3", resp.get("error"));
+        assertEquals("steps[0]", resp.get("step"));
+        assertEquals(3, echoed.size());
+    }
+
+    @Test
+    public void repeatEndsWithoutFailure() throws Exception {
+        HashMap<String, Object> resp = run(script(map("repeat", 5, "while", map("var", "go"), "index", "i",
+                "steps", Arrays.asList(map("set", "go", "value", false)))), map("go", true), 0);
+        assertEquals("ok", resp.get("status"));
+        assertEquals(0, resp.get("steps"));
+    }
+
+    // ---- 失败 ----
+
+    @Test
+    public void failedOperationStopsScript() throws Exception {
+        HashMap<String, Object> resp = run(
+                map("operation", "echo"),
+                map("if", map("operation", "poll"), "then", Arrays.asList(map("operation", "broken"))),
+                map("operation", "echo"));
+        assertEquals("failed", resp.get("status"));
+        assertEquals("broken", resp.get("error"));
+        assertEquals("steps[1].then[0]", resp.get("step"));
+        assertEquals(1, echoed.size());
+    }
+
+    @Test
+    public void optionalOperationContinues() throws Exception {
+        HashMap<String, Object> resp = run(
+                map("operation", "broken", "optional", true, "retry", 1, "retryDelay", 1),
+                map("operation", "echo"));
+        assertEquals("ok", resp.get("status"));
+        // 失败的操作重试一次
+        assertEquals(3, resp.get("steps"));
+        assertEquals(1, echoed.size());
+    }
+
+    @Test
+    public void failStepResolvesMessage() throws Exception {
+        HashMap<String, Object> resp = run(script(map("fail", "bad ${n}")), map("n", 7), 0);
+        assertEquals("failed", resp.get("status"));
+        assertEquals("bad 7", resp.get("error"));
+        assertEquals("steps[0]", resp.get("step"));
+    }
+
+    // ---- 取消和超时 ----
+
+    @Test
+    public void sleepPastDeadlineTimesOut() throws Exception {
+        HashMap<String, Object> resp = run(script(map("operation", "echo"), map("sleep", 5000)), null, 50);
+        assertEquals("timeout", resp.get("status"));
+        assertEquals("steps[1]", resp.get("step"));
+    }
+
+    @Test
+    public void cancelInterruptsRunningScript() throws Exception {
+        engine.put("test", script(map("operation", "start"), map("sleep", 4000), map("operation", "echo")));
+        CompletableFuture<HashMap<String, Object>> future =
+                engine.run(new Command("run-1", MessageCodec.JSON, map()), "test", null, 0, false);
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        assertTrue(engine.cancel("run-1"));
+        HashMap<String, Object> resp = future.get(2, TimeUnit.SECONDS);
+        assertEquals("cancelled", resp.get("status"));
+        assertTrue(echoed.isEmpty());
+        assertFalse(engine.cancel("run-1"));
+    }
+
+    @Test
+    public void cancelQueuedScript() throws Exception {
+        engine.put("first", script(map("operation", "start"), map("sleep", 300)));
+        engine.put("second", script(map("operation", "echo")));
+        CompletableFuture<HashMap<String, Object>> first =
+                engine.run(new Command("run-1", MessageCodec.JSON, map()), "first", null, 0, false);
+        CompletableFuture<HashMap<String, Object>> second =
+                engine.run(new Command("run-2", MessageCodec.JSON, map()), "second", null, 0, false);
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        assertTrue(engine.cancel("run-2"));
+        assertEquals("ok", first.get(2, TimeUnit.SECONDS).get("status"));
+        assertEquals("cancelled", second.get(2, TimeUnit.SECONDS).get("status"));
+        assertTrue(echoed.isEmpty());
+    }
+
+    @Test
+    public void unknownScriptIsRejected() {
+        try {
+            engine.run(new Command("run-1", MessageCodec.JSON, map()), "nope", null, 0, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("unknown script: nope", e.getMessage());
+        }
+        assertFalse(engine.cancel("run-1"));
+    }
+}